@@ -51,6 +51,32 @@ public class ArrayFieldNode extends VariableNode {
         this.index = index;
     }
 
+    /**
+     * Construct an {@link ArrayFieldNode} with a known type code and number
+     * of children.
+     *
+     * @param name the name
+     * @param type the type
+     * @param typeCode the type code (see {@link VariableNode#typeCode(String)})
+     * @param value the value
+     * @param valueChildCount the number of elements or fields of the value
+     * @param array a reference to the array
+     * @param index the index inside the array
+     */
+    public ArrayFieldNode(String name, String type, int typeCode, Value value, int valueChildCount, ArrayReference array, int index) {
+        super(name, type, typeCode, value, valueChildCount);
+        this.array = array;
+        this.index = index;
+    }
+
+    @Override
+    public boolean update(VariableNode other) {
+        ArrayFieldNode node = (ArrayFieldNode) other;
+        array = node.array;
+        index = node.index;
+        return super.update(other);
+    }
+
     @Override
     public void setValue(Value value) {
         try {
@@ -60,6 +86,6 @@ public class ArrayFieldNode extends VariableNode {
         } catch (ClassNotLoadedException ex) {
             Logger.getLogger(ArrayFieldNode.class.getName()).log(Level.SEVERE, null, ex);
         }
-        this.value = value;
+        super.setValue(value); // updates the captured display data
     }
 }
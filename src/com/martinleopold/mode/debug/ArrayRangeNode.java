@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015 Martin Leopold <m@martinleopold.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package com.martinleopold.mode.debug;
+
+import com.sun.jdi.ArrayReference;
+import com.sun.jdi.Value;
+
+/**
+ * Specialized {@link VariableNode} for representing a range of elements in a
+ * large array, e.g. [1000..1999]. Its children are only fetched when the node
+ * is expanded. Can't be edited.
+ *
+ * @author Martin Leopold <m@martinleopold.com>
+ */
+public class ArrayRangeNode extends VariableNode {
+
+    protected ArrayReference array;
+    protected int start;
+    protected int length;
+
+    /**
+     * Construct an {@link ArrayRangeNode}.
+     *
+     * @param type the type of the array
+     * @param array a reference to the array
+     * @param start index of the first element in the range
+     * @param length number of elements in the range
+     */
+    public ArrayRangeNode(String type, ArrayReference array, int start, int length) {
+        super("[" + start + ".." + (start + length - 1) + "]", type, TYPE_ARRAY, array, "", length);
+        this.array = array;
+        this.start = start;
+        this.length = length;
+    }
+
+    /**
+     * Get the array this range belongs to.
+     *
+     * @return the array reference
+     */
+    public ArrayReference getArray() {
+        return array;
+    }
+
+    /**
+     * Get the index of the first element in this range.
+     *
+     * @return the start index
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * Get the number of elements in this range.
+     *
+     * @return the length
+     */
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public void setValue(Value value) {
+        // ranges can't be set
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015 Martin Leopold <m@martinleopold.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package com.martinleopold.mode.debug;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Index of {@link LineBreakpoint}s by line. Lines are keyed by their packed
+ * {@link LineID#key()}, so all breakpoints of a file form a contiguous, line
+ * ordered range. Listens to the breakpoints' {@link TrackedLine}s, so entries
+ * move along when lines are edited. Usually there's one breakpoint per line,
+ * but edits can temporarily move two onto the same line (e.g. when joining
+ * lines). Thread safe.
+ *
+ * @author Martin Leopold <m@martinleopold.com>
+ */
+public class BreakpointIndex implements LineListener {
+
+    protected TreeMap<Long, List<LineBreakpoint>> lines = new TreeMap(); // line key -> breakpoints
+    protected Map<TrackedLine, LineBreakpoint> byLine = new IdentityHashMap(); // the breakpoints tracked line -> breakpoint
+
+    /**
+     * Add a breakpoint. Starts listening to line changes of its line.
+     *
+     * @param bp the breakpoint
+     */
+    public synchronized void add(LineBreakpoint bp) {
+        TrackedLine line = bp.trackedLine();
+        put(line.lineID().key(), bp);
+        byLine.put(line, bp);
+        line.addListener(this);
+    }
+
+    /**
+     * Remove a breakpoint. Stops listening to line changes of its line.
+     *
+     * @param bp the breakpoint
+     */
+    public synchronized void remove(LineBreakpoint bp) {
+        TrackedLine line = bp.trackedLine();
+        line.removeListener(this);
+        take(line.lineID().key(), bp);
+        byLine.remove(line);
+    }
+
+    /**
+     * Get the breakpoint on a line.
+     *
+     * @param line the line
+     * @return the breakpoint, or null if there's none
+     */
+    public synchronized LineBreakpoint get(LineID line) {
+        List<LineBreakpoint> bps = lines.get(line.key());
+        if (bps == null) {
+            return null;
+        }
+        return bps.get(0);
+    }
+
+    /**
+     * Get all breakpoints in a file.
+     *
+     * @param fileName the file name
+     * @return the breakpoints, ordered by line
+     */
+    public synchronized List<LineBreakpoint> get(String fileName) {
+        return get(fileName, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Get the breakpoints in a range of lines of a file, e.g. the visible
+     * lines.
+     *
+     * @param fileName the file name
+     * @param firstLine index of the first line (inclusive)
+     * @param lastLine index of the last line (inclusive)
+     * @return the breakpoints, ordered by line
+     */
+    public synchronized List<LineBreakpoint> get(String fileName, int firstLine, int lastLine) {
+        List<LineBreakpoint> result = new ArrayList();
+        if (firstLine <= lastLine) {
+            int fileId = LineID.fileId(fileName);
+            for (List<LineBreakpoint> bps : lines.subMap(LineID.key(fileId, Math.max(firstLine, 0)), true, LineID.key(fileId, lastLine), true).values()) {
+                result.addAll(bps);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Remove all breakpoints in a file.
+     *
+     * @param fileName the file name
+     * @return the removed breakpoints, ordered by line
+     */
+    public synchronized List<LineBreakpoint> removeAll(String fileName) {
+        List<LineBreakpoint> removed = get(fileName);
+        for (LineBreakpoint bp : removed) {
+            remove(bp);
+        }
+        return removed;
+    }
+
+    /**
+     * Remove all breakpoints.
+     */
+    public synchronized void clear() {
+        for (TrackedLine line : byLine.keySet()) {
+            line.removeListener(this);
+        }
+        byLine.clear();
+        lines.clear();
+    }
+
+    /**
+     * Move a breakpoint when its line number changed due to editing.
+     */
+    @Override
+    public synchronized void lineChanged(TrackedLine line, int oldLineIdx, int newLineIdx) {
+        LineBreakpoint bp = byLine.get(line);
+        if (bp == null) {
+            return;
+        }
+        int fileId = line.lineID().fileId();
+        take(LineID.key(fileId, oldLineIdx), bp);
+        put(LineID.key(fileId, newLineIdx), bp);
+    }
+
+    protected void put(long key, LineBreakpoint bp) {
+        List<LineBreakpoint> bps = lines.get(key);
+        if (bps == null) {
+            bps = new ArrayList(1);
+            lines.put(key, bps);
+        }
+        bps.add(bp);
+    }
+
+    protected void take(long key, LineBreakpoint bp) {
+        List<LineBreakpoint> bps = lines.get(key);
+        if (bps == null) {
+            return;
+        }
+        bps.remove(bp);
+        if (bps.isEmpty()) {
+            lines.remove(key);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 Martin Leopold <m@martinleopold.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package com.martinleopold.mode.debug;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import processing.app.Sketch;
+import processing.app.SketchCode;
+
+/**
+ * Remembers the last successful {@link DebugBuild} of each sketch, so its
+ * src and bin folders can be reused. Builds are identified by SHA-1 hashes of
+ * the tab contents and compiler flags, the classpath (including the size and
+ * modification time of its entries) and each generated source file. Held by
+ * {@link DebugMode}, so it lives across debug sessions. Thread safe.
+ *
+ * @author Martin Leopold <m@martinleopold.com>
+ */
+public class BuildCache {
+
+    protected Map<String, Entry> entries = new ConcurrentHashMap(); // sketch folder path -> last build
+
+    /**
+     * A successful build. Immutable.
+     */
+    public static class Entry {
+
+        protected final String sketchHash; // hash of the tabs and compiler flags
+        protected final List<String> tabNames; // file names of the tabs, in order
+        protected final String classPath; // the classpath the build was compiled with
+        protected final String classPathHash; // hash of the classpath and its entries
+        protected final String javaLibraryPath; // native library path of the build
+        protected final File srcFolder; // folder with the preprocessed sources
+        protected final File binFolder; // folder with the compiled classes
+        protected final String mainClassName; // name of the main class
+        protected final boolean foundMain; // true if the sketch has its own main(), i.e. isn't run through PApplet.main
+        protected final Map<String, String> sourceHashes; // generated source file name -> hash
+        protected final ClassFiles classFiles; // the compiled classes, as in the bin folder
+
+        public Entry(String sketchHash, List<String> tabNames, String classPath, String javaLibraryPath, File srcFolder, File binFolder, String mainClassName, boolean foundMain, Map<String, String> sourceHashes, ClassFiles classFiles) {
+            this.sketchHash = sketchHash;
+            this.tabNames = Collections.unmodifiableList(tabNames);
+            this.classPath = classPath;
+            this.classPathHash = classPathHash(classPath);
+            this.javaLibraryPath = javaLibraryPath;
+            this.srcFolder = srcFolder;
+            this.binFolder = binFolder;
+            this.mainClassName = mainClassName;
+            this.foundMain = foundMain;
+            this.sourceHashes = Collections.unmodifiableMap(sourceHashes);
+            this.classFiles = classFiles;
+        }
+
+        /**
+         * Check whether the folders of this build still exist and its
+         * classpath is unchanged, i.e. whether the build can be reused.
+         *
+         * @return true if usable
+         */
+        public boolean isValid() {
+            return srcFolder.isDirectory() && binFolder.isDirectory() && classPathHash.equals(classPathHash(classPath));
+        }
+    }
+
+    /**
+     * Get the last successful build of a sketch.
+     *
+     * @param sketch the sketch
+     * @return the last build, or null if there's none
+     */
+    public Entry get(Sketch sketch) {
+        return entries.get(sketch.getFolder().getAbsolutePath());
+    }
+
+    /**
+     * Remember a successful build of a sketch. Replaces the previous one.
+     *
+     * @param sketch the sketch
+     * @param entry the build
+     */
+    public void put(Sketch sketch, Entry entry) {
+        entries.put(sketch.getFolder().getAbsolutePath(), entry);
+    }
+
+    /**
+     * Forget the last build of a sketch, e.g. when it failed.
+     *
+     * @param sketch the sketch
+     */
+    public void remove(Sketch sketch) {
+        entries.remove(sketch.getFolder().getAbsolutePath());
+    }
+
+    /**
+     * Hash the contents of a sketch's tabs and the compiler flags.
+     *
+     * @param sketch the sketch
+     * @param flags the compiler flags
+     * @return the hash
+     */
+    public static String sketchHash(Sketch sketch, String[] flags) {
+        MessageDigest md = digest();
+        update(md, sketch.getName());
+        for (int i = 0; i < sketch.getCodeCount(); i++) {
+            SketchCode tab = sketch.getCode(i);
+            update(md, tab.getFileName());
+            update(md, tab.getProgram());
+        }
+        for (String flag : flags) {
+            update(md, flag);
+        }
+        return hex(md.digest());
+    }
+
+    /**
+     * Hash a classpath, including the size and modification time of its
+     * entries. Changes when a library jar is replaced.
+     *
+     * @param classPath the classpath
+     * @return the hash
+     */
+    public static String classPathHash(String classPath) {
+        MessageDigest md = digest();
+        if (classPath != null) {
+            for (String path : classPath.split(File.pathSeparator)) {
+                File f = new File(path);
+                update(md, path);
+                update(md, f.length() + ":" + f.lastModified());
+            }
+        }
+        return hex(md.digest());
+    }
+
+    /**
+     * Hash a string, e.g. the contents of a source file.
+     *
+     * @param str the string
+     * @return the hash
+     */
+    public static String hash(String str) {
+        MessageDigest md = digest();
+        update(md, str);
+        return hex(md.digest());
+    }
+
+    protected static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex); // every java platform has SHA-1
+        }
+    }
+
+    protected static void update(MessageDigest md, String str) {
+        try {
+            byte[] bytes = (str == null ? "" : str).getBytes("UTF-8");
+            md.update(bytes);
+            md.update((byte) 0); // separator, so "ab"+"c" and "a"+"bc" differ
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex); // every java platform has UTF-8
+        }
+    }
+
+    protected static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2015 Martin Leopold <m@martinleopold.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package com.martinleopold.mode.debug;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.Document;
+import processing.app.SketchException;
+
+/**
+ * Builds the sketch in the background while editing, so pressing Debug can
+ * reuse the build (see {@link BuildCache}). Edits of the current tab are
+ * debounced, a build starts after {@link #DELAY} ms without edits. Builds run
+ * on a worker thread, one at a time. A build is skipped if newer edits
+ * superseded it before it started, and a running build stops at its next
+ * phase when cancelled. Nothing is built while a session is launching or
+ * running, since builds reuse the bin folder of the running sketch.
+ * Disabled by default.
+ *
+ * @author Martin Leopold <m@martinleopold.com>
+ */
+public class BuildScheduler implements DocumentListener, ActionListener {
+
+    public static final int DELAY = 1000; // ms without edits before building
+    protected DebugEditor editor; // the editor
+    protected Timer timer; // debounces edits. fires on the event dispatch thread
+    protected Document doc; // the watched document, i.e. the current tab's
+    protected volatile boolean enabled = false; // true if building in the background
+    protected final ExecutorService executor = Executors.newSingleThreadExecutor(new BuildThreadFactory()); // runs the builds
+    protected final AtomicLong generation = new AtomicLong(); // incremented for every scheduled build and on cancel. used to skip superseded builds
+    protected final Object buildLock = new Object(); // held while building, by background builds and the debugger
+    protected volatile boolean pending = false; // true from scheduling a build until it's done
+    protected volatile DebugBuild currentBuild; // the running background build, null if none
+
+    /**
+     * Creates daemon threads with low priority for background builds.
+     */
+    protected static class BuildThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Debug Mode Background Build");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    }
+
+    public BuildScheduler(DebugEditor editor) {
+        this.editor = editor;
+        timer = new Timer(DELAY, this);
+        timer.setRepeats(false);
+    }
+
+    /**
+     * Enable or disable background builds. Disabling cancels pending builds.
+     *
+     * @param enabled true to build in the background
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (enabled) {
+            timer.restart(); // build what's there
+        } else {
+            cancel();
+        }
+        Logger.getLogger(BuildScheduler.class.getName()).log(Level.INFO, "background build {0}", enabled ? "enabled" : "disabled");
+    }
+
+    /**
+     * Check whether background builds are enabled.
+     *
+     * @return true if enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Watch a document for edits. Stops watching the previous one. Call when
+     * switching tabs.
+     *
+     * @param doc the current tab's document
+     */
+    public void watch(Document doc) {
+        if (doc == this.doc) {
+            return;
+        }
+        if (this.doc != null) {
+            this.doc.removeDocumentListener(this);
+        }
+        this.doc = doc;
+        if (doc != null) {
+            doc.addDocumentListener(this);
+        }
+    }
+
+    /**
+     * Get the lock held while building. Builds outside of this scheduler
+     * (i.e. when starting to debug) need to hold it as well, since builds of
+     * the same sketch share their folders.
+     *
+     * @return the lock
+     */
+    public Object buildLock() {
+        return buildLock;
+    }
+
+    /**
+     * Cancel pending builds and stop a running one at its next phase.
+     */
+    public void cancel() {
+        timer.stop();
+        generation.incrementAndGet();
+        DebugBuild build = currentBuild;
+        if (build != null) {
+            build.cancel();
+        }
+    }
+
+    /**
+     * Stop watching for edits and shut down the worker thread. Call when the
+     * editor is closed.
+     */
+    public void dispose() {
+        cancel();
+        watch(null);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Called when the debounce timer fires, on the event dispatch thread.
+     * Schedules a build.
+     *
+     * @param ae the timer event
+     */
+    @Override
+    public void actionPerformed(ActionEvent ae) {
+        if (!enabled || editor.dbg().isActive()) {
+            return;
+        }
+        if (pending) {
+            timer.restart(); // don't change the tabs under a running build, try again later
+            return;
+        }
+        // the sketch only holds the text of the current tab as of the last tab switch or save
+        editor.getSketch().getCurrentCode().setProgram(editor.getText());
+        final long gen = generation.incrementAndGet();
+        pending = true;
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    build(gen);
+                } finally {
+                    pending = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Build the sketch, unless superseded or debugging. Runs on the worker
+     * thread. Failures are only logged, the sketch is still being edited.
+     *
+     * @param gen the generation of this build
+     */
+    protected void build(long gen) {
+        synchronized (buildLock) {
+            if (gen != generation.get() || editor.dbg().isActive()) {
+                return; // superseded by newer edits, or cancelled
+            }
+            DebugBuild build = new DebugBuild(editor.getSketch());
+            currentBuild = build;
+            long start = System.nanoTime();
+            try {
+                String mainClassName = build.build(false);
+                Logger.getLogger(BuildScheduler.class.getName()).log(Level.INFO, "background build of {0} took {1} ms{2}", new Object[]{
+                            mainClassName, (System.nanoTime() - start) / 1000000, build.isReused() ? " (reused)" : ""});
+                editor.mode().getVMPool().prelaunch(build, mainClassName, editor); // so starting to debug this build is fast
+            } catch (SketchException ex) {
+                Logger.getLogger(BuildScheduler.class.getName()).log(Level.INFO, "background build failed: {0}", ex.getMessage());
+            } catch (RuntimeException ex) {
+                Logger.getLogger(BuildScheduler.class.getName()).log(Level.WARNING, "background build failed", ex);
+            } finally {
+                currentBuild = null;
+            }
+        }
+    }
+
+    protected void edited() {
+        if (enabled) {
+            timer.restart();
+        }
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent de) {
+        edited();
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent de) {
+        edited();
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent de) {
+        // attribute changes only
+    }
+}
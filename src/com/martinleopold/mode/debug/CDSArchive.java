@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2015 Martin Leopold <m@martinleopold.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package com.martinleopold.mode.debug;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import processing.app.Base;
+
+/**
+ * Maintains class data sharing (AppCDS) archives of the debuggee's jars, i.e.
+ * Processing core and libraries, so debuggees don't load and verify these
+ * classes from scratch on every launch. An archive covers the jars at the
+ * front of the classpath, up to the first folder: the archive's classpath
+ * has to be a prefix of the debuggee's, and folders, i.e. the bin and code
+ * folders, can't be archived. The classpath itself is never reordered, that
+ * would let jars shadow sketch classes. An archive is generated in the
+ * background the first time a classpath is seen, by running a small sketch
+ * with -XX:ArchiveClassesAtExit, and used by later launches. Archives are
+ * keyed by a hash of the jars (including their size and modification time)
+ * and the java runtime, so they're regenerated when a jar changes. Needs a
+ * java runtime with dynamic archives (13 or later), otherwise does nothing.
+ * Held by {@link DebugMode}. Thread safe.
+ *
+ * @author Martin Leopold <m@martinleopold.com>
+ */
+public class CDSArchive {
+
+    public static final int MIN_JAVA_VERSION = 13; // first version with -XX:ArchiveClassesAtExit
+    public static final String SKETCH_CLASS = "CDSWarmup"; // sketch run to load the classes for the archive
+    public static final int SKETCH_FRAMES = 30; // frames the sketch draws before exiting
+    public static final long DUMP_TIMEOUT = 60000; // ms to wait for the sketch to exit, it's killed after that
+    public static final int MAX_ARCHIVES = 8; // archives kept in the folder, the least recently used are deleted
+    protected static final String EXTENSION = ".jsa"; // archive file extension
+    protected File folder; // where archives are stored
+    protected volatile boolean enabled = true; // true if archives are used
+    protected final ConcurrentHashMap<String, Future<?>> generating = new ConcurrentHashMap(); // archives being generated, by key
+    protected final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Debug Mode CDS Archive");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    }); // generates archives, one at a time
+
+    /**
+     * Create an archive manager.
+     *
+     * @param folder where to store the archives. Created when needed
+     */
+    public CDSArchive(File folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * Check whether the java runtime supports dynamic archives.
+     *
+     * @return true if supported
+     */
+    public static boolean isSupported() {
+        return javaVersion() >= MIN_JAVA_VERSION;
+    }
+
+    /**
+     * Get the major version of the java runtime, e.g. 8 for 1.8 or 17 for 17.
+     *
+     * @return the major version, 0 if unknown
+     */
+    protected static int javaVersion() {
+        String version = System.getProperty("java.specification.version", "0");
+        if (version.startsWith("1.")) {
+            version = version.substring(2);
+        }
+        try {
+            return Integer.parseInt(version);
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Enable or disable using archives, e.g. to compare startup times.
+     *
+     * @param enabled true to use archives
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        Logger.getLogger(CDSArchive.class.getName()).log(Level.INFO, "class data sharing {0}", enabled ? "enabled" : "disabled");
+    }
+
+    /**
+     * Check whether archives are used.
+     *
+     * @return true if enabled and supported
+     */
+    public boolean isEnabled() {
+        return enabled && isSupported();
+    }
+
+    /**
+     * Add the archive for the classpath to the debuggee VM parameters. If
+     * there's no archive yet, it's generated in the background and the
+     * parameters are returned unchanged, as they are if the classpath doesn't
+     * start with a jar. The classpath is left as it is.
+     *
+     * @param params the VM parameters, including -cp
+     * @return the VM parameters with the archive, or params if there's none
+     */
+    public String[] machineParams(String[] params) {
+        if (!isEnabled()) {
+            return params;
+        }
+        List<String> jars = leadingJars(params);
+        if (jars.isEmpty()) {
+            return params;
+        }
+        String key = key(jars);
+        File archive = new File(folder, key + EXTENSION);
+        if (!archive.isFile()) {
+            generate(key, jars, archive);
+            return params;
+        }
+        archive.setLastModified(System.currentTimeMillis()); // recently used
+        String[] result = Arrays.copyOf(params, params.length + 2);
+        result[params.length] = "-XX:SharedArchiveFile=" + archive.getAbsolutePath();
+        result[params.length + 1] = "-Xshare:auto"; // fall back to not sharing if the archive doesn't fit
+        return result;
+    }
+
+    /**
+     * Generate the archive for the classpath, unless there is one, and wait
+     * until it's done. Used to benchmark startup with a fresh archive.
+     *
+     * @param params the VM parameters, including -cp
+     * @return true if there's an archive for the classpath
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean prepare(String[] params) throws InterruptedException {
+        List<String> jars = leadingJars(params);
+        if (!isSupported() || jars.isEmpty()) {
+            return false;
+        }
+        String key = key(jars);
+        File archive = new File(folder, key + EXTENSION);
+        if (!archive.isFile()) {
+            try {
+                generate(key, jars, archive).get();
+            } catch (ExecutionException ex) {
+                Logger.getLogger(CDSArchive.class.getName()).log(Level.WARNING, "generating class data sharing archive failed", ex);
+            }
+        }
+        return archive.isFile();
+    }
+
+    /**
+     * Get the jars at the front of the classpath of VM parameters, up to the
+     * first folder. These are the ones an archive can cover.
+     *
+     * @param params the VM parameters
+     * @return the jars, empty if there's no classpath or it starts with a
+     * folder
+     */
+    protected static List<String> leadingJars(String[] params) {
+        List<String> jars = new ArrayList();
+        int cpIndex = Math.max(Arrays.asList(params).indexOf("-cp"), Arrays.asList(params).indexOf("-classpath")) + 1;
+        if (cpIndex == 0 || cpIndex >= params.length) {
+            return jars; // no classpath
+        }
+        for (String path : params[cpIndex].split(File.pathSeparator)) {
+            if (path.isEmpty()) {
+                continue;
+            }
+            if (!new File(path).isFile()) {
+                break; // a folder, i.e. the bin or code folder, ends the part that can be archived
+            }
+            jars.add(path);
+        }
+        return jars;
+    }
+
+    /**
+     * Check whether VM parameters use an archive.
+     *
+     * @param params the VM parameters
+     * @return true if an archive is passed
+     */
+    public static boolean usesArchive(String[] params) {
+        for (String param : params) {
+            if (param.startsWith("-XX:SharedArchiveFile=")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Generate an archive in the background, unless already generating it.
+     *
+     * @param key the archive key
+     * @param jars the jars to archive classes of
+     * @param archive the archive file
+     * @return completes when the archive is generated, or failed to
+     */
+    protected Future<?> generate(final String key, final List<String> jars, final File archive) {
+        FutureTask<?> task = new FutureTask(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dump(jars, archive);
+                } finally {
+                    generating.remove(key);
+                }
+            }
+        }, null);
+        Future<?> running = generating.putIfAbsent(key, task);
+        if (running != null) {
+            return running;
+        }
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Generate an archive by running a small sketch with the jars on the
+     * classpath. The sketch opens a window and draws a few frames before it
+     * exits, so the archive covers what a debuggee loads up to its first
+     * frames: core, the renderer and AWT. On a headless system it fails to
+     * open the window, the archive then covers what was loaded until then.
+     * The sketch is a single source file run by the java launcher, so the
+     * archive's classpath is exactly the jars. Written to a temporary file
+     * first, so launches never see a partial archive.
+     *
+     * @param jars the jars
+     * @param archive the archive file
+     */
+    protected void dump(List<String> jars, File archive) {
+        long start = System.nanoTime();
+        folder.mkdirs();
+        File tmp = new File(folder, archive.getName() + ".tmp");
+        File log = new File(folder, archive.getName() + ".log");
+        tmp.delete();
+        File sketchFolder = null;
+        try {
+            sketchFolder = Base.createTempFolder("debug", "cds", null);
+            File source = new File(sketchFolder, SKETCH_CLASS + ".java");
+            Base.saveFile("public class " + SKETCH_CLASS + " extends processing.core.PApplet {\n"
+                    + "    public void setup() { size(200, 200); }\n"
+                    + "    public void draw() {\n"
+                    + "        background(frameCount % 256);\n"
+                    + "        ellipse(mouseX, mouseY, 20, 20);\n"
+                    + "        text(frameCount, 10, 20);\n"
+                    + "        if (frameCount >= " + SKETCH_FRAMES + ") { exit(); }\n"
+                    + "    }\n"
+                    + "    public static void main(String[] args) { runSketch(new String[]{\"" + SKETCH_CLASS + "\"}, new " + SKETCH_CLASS + "()); }\n"
+                    + "}\n", source);
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            ProcessBuilder pb = new ProcessBuilder(java,
+                    "-XX:ArchiveClassesAtExit=" + tmp.getAbsolutePath(),
+                    "-cp", join(jars),
+                    source.getAbsolutePath());
+            pb.redirectErrorStream(true);
+            pb.redirectOutput(log);
+            Process p = pb.start();
+            Integer exit = waitFor(p, DUMP_TIMEOUT);
+            if (exit == null) {
+                Logger.getLogger(CDSArchive.class.getName()).log(Level.WARNING, "class data sharing sketch didn't exit within {0} ms", DUMP_TIMEOUT);
+                p.destroy();
+                exit = p.waitFor();
+            }
+            if (tmp.isFile() && tmp.renameTo(archive)) {
+                Logger.getLogger(CDSArchive.class.getName()).log(Level.INFO, "generated class data sharing archive {0} in {1} ms (exit code {2})", new Object[]{archive.getName(), (System.nanoTime() - start) / 1000000, exit});
+                prune();
+            } else {
+                Logger.getLogger(CDSArchive.class.getName()).log(Level.WARNING, "generating class data sharing archive failed (exit code {0}): {1}", new Object[]{exit, read(new FileInputStream(log))});
+                tmp.delete();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(CDSArchive.class.getName()).log(Level.WARNING, "generating class data sharing archive failed", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            log.delete();
+            if (sketchFolder != null) {
+                Base.removeDir(sketchFolder);
+            }
+        }
+    }
+
+    /**
+     * Wait for a process to exit.
+     *
+     * @param p the process
+     * @param timeout ms to wait at most
+     * @return the exit code, null if still running after the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    protected static Integer waitFor(Process p, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            try {
+                return p.exitValue();
+            } catch (IllegalThreadStateException ex) {
+                if (System.currentTimeMillis() >= deadline) {
+                    return null;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * Delete the least recently used archives, keeping {@link #MAX_ARCHIVES}.
+     */
+    protected void prune() {
+        File[] archives = folder.listFiles();
+        if (archives == null) {
+            return;
+        }
+        List<File> list = new ArrayList();
+        for (File f : archives) {
+            if (f.getName().endsWith(EXTENSION)) {
+                list.add(f);
+            }
+        }
+        Collections.sort(list, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(b.lastModified(), a.lastModified()); // most recent first
+            }
+        });
+        for (int i = MAX_ARCHIVES; i < list.size(); i++) {
+            list.get(i).delete();
+        }
+    }
+
+    /**
+     * Get the key of an archive: a hash of the jars, their size and
+     * modification time and the java runtime.
+     *
+     * @param jars the jars
+     * @return the key
+     */
+    protected static String key(List<String> jars) {
+        MessageDigest md = BuildCache.digest();
+        BuildCache.update(md, System.getProperty("java.home"));
+        BuildCache.update(md, System.getProperty("java.vm.version"));
+        for (String path : jars) {
+            File f = new File(path);
+            BuildCache.update(md, path);
+            BuildCache.update(md, f.length() + ":" + f.lastModified());
+        }
+        return BuildCache.hex(md.digest());
+    }
+
+    protected static String join(List<String> paths) {
+        StringBuilder sb = new StringBuilder();
+        for (String path : paths) {
+            if (sb.length() > 0) {
+                sb.append(File.pathSeparator);
+            }
+            sb.append(path);
+        }
+        return sb.toString();
+    }
+
+    protected static String read(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            sb.append(new String(buf, 0, n, "UTF-8"));
+        }
+        in.close();
+        return sb.toString();
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2015 Martin Leopold <m@martinleopold.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package com.martinleopold.mode.debug;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The compiled classes of a build, held in memory as class file bytes by
+ * binary class name (e.g. MySketch$Ball), along with the source file each
+ * class was compiled from. Filled by the in-memory compiler,
+ * or read from the bin folder if the sketch was compiled to disk. Written to
+ * the bin folder for the debuggee, skipping unchanged classes. Also the
+ * source of the class bytes for redefining classes in the debuggee. Thread
+ * safe.
+ *
+ * @author Martin Leopold <m@martinleopold.com>
+ */
+public class ClassFiles {
+
+    protected Map<String, byte[]> classes = new ConcurrentHashMap(); // binary class name -> class file bytes
+    protected Map<String, String> sourceFiles = new ConcurrentHashMap(); // binary class name -> name of the source file it was compiled from
+
+    public ClassFiles() {
+    }
+
+    /**
+     * Create a copy of another set of classes.
+     *
+     * @param other the classes to copy
+     */
+    public ClassFiles(ClassFiles other) {
+        classes.putAll(other.classes);
+        sourceFiles.putAll(other.sourceFiles);
+    }
+
+    /**
+     * Add or replace a class.
+     *
+     * @param name the binary class name
+     * @param bytes the class file bytes
+     */
+    public void put(String name, byte[] bytes) {
+        classes.put(name, bytes);
+        String sourceFile = readSourceFile(bytes);
+        if (sourceFile == null) { // compiled without debug info
+            sourceFile = ClassRegistry.topLevelName(name) + ".java";
+        }
+        sourceFiles.put(name, sourceFile);
+    }
+
+    /**
+     * Get the bytes of a class.
+     *
+     * @param name the binary class name
+     * @return the class file bytes, or null if not found
+     */
+    public byte[] get(String name) {
+        return classes.get(name);
+    }
+
+    /**
+     * Get the names of all classes.
+     *
+     * @return the binary class names
+     */
+    public Set<String> names() {
+        return classes.keySet();
+    }
+
+    /**
+     * Get the name of the source file a class was compiled from.
+     *
+     * @param name the binary class name
+     * @return the file name, e.g. Ball.java, or null if not found
+     */
+    public String sourceFile(String name) {
+        return sourceFiles.get(name);
+    }
+
+    /**
+     * Get the classes compiled from a source file, including any other top
+     * level classes it declares and all nested classes.
+     *
+     * @param fileName the file name of the source, e.g. Ball.java
+     * @return the binary class names
+     */
+    public Set<String> compiledFrom(String fileName) {
+        Set<String> names = new HashSet();
+        for (Map.Entry<String, String> entry : sourceFiles.entrySet()) {
+            if (entry.getValue().equals(fileName)) {
+                names.add(entry.getKey());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Remove the classes compiled from a source file, e.g. before it is
+     * recompiled.
+     *
+     * @param fileName the file name of the source
+     */
+    public void removeSource(String fileName) {
+        for (String name : compiledFrom(fileName)) {
+            classes.remove(name);
+            sourceFiles.remove(name);
+        }
+    }
+
+    /**
+     * Get the classes that are new or differ from another set of classes.
+     *
+     * @param previous the classes to compare to, or null
+     * @return the binary names of the changed classes
+     */
+    public List<String> changedSince(ClassFiles previous) {
+        List<String> changed = new ArrayList();
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            byte[] before = previous == null ? null : previous.get(entry.getKey());
+            if (before == null || !Arrays.equals(before, entry.getValue())) {
+                changed.add(entry.getKey());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Write the classes to a folder. Only writes classes that changed since
+     * the previous build (or are missing), and deletes classes of the
+     * previous build that are gone.
+     *
+     * @param folder the bin folder
+     * @param previous the classes of the previous build in that folder, or
+     * null
+     * @return the number of class files written
+     * @throws IOException if writing failed
+     */
+    public int write(File folder, ClassFiles previous) throws IOException {
+        int written = 0;
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            File file = classFile(folder, entry.getKey());
+            byte[] before = previous == null ? null : previous.get(entry.getKey());
+            if (before != null && file.exists() && Arrays.equals(before, entry.getValue())) {
+                continue; // unchanged
+            }
+            file.getParentFile().mkdirs();
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(entry.getValue());
+            } finally {
+                out.close();
+            }
+            written++;
+        }
+        if (previous != null) {
+            for (String name : previous.names()) {
+                if (!classes.containsKey(name)) {
+                    classFile(folder, name).delete();
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Read all classes from a folder, e.g. after compiling to disk.
+     *
+     * @param folder the bin folder
+     * @return the classes
+     * @throws IOException if reading failed
+     */
+    public static ClassFiles read(File folder) throws IOException {
+        ClassFiles classFiles = new ClassFiles();
+        read(folder, "", classFiles);
+        return classFiles;
+    }
+
+    protected static void read(File folder, String packagePrefix, ClassFiles classFiles) throws IOException {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            String name = f.getName();
+            if (f.isDirectory()) {
+                read(f, packagePrefix + name + ".", classFiles);
+            } else if (name.endsWith(".class")) {
+                classFiles.put(packagePrefix + name.substring(0, name.length() - ".class".length()), readBytes(f));
+            }
+        }
+    }
+
+    /**
+     * Read the SourceFile attribute of a class file.
+     *
+     * @param bytes the class file bytes
+     * @return the source file name, or null if the class file has none or
+     * can't be parsed
+     */
+    protected static String readSourceFile(byte[] bytes) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            in.skipBytes(8); // magic, minor and major version
+            int poolSize = in.readUnsignedShort();
+            String[] utf8 = new String[poolSize];
+            for (int i = 1; i < poolSize; i++) {
+                int tag = in.readUnsignedByte();
+                switch (tag) {
+                    case 1: // Utf8
+                        utf8[i] = in.readUTF();
+                        break;
+                    case 5: // Long
+                    case 6: // Double
+                        in.skipBytes(8);
+                        i++; // takes two entries
+                        break;
+                    case 7: // Class
+                    case 8: // String
+                    case 16: // MethodType
+                    case 19: // Module
+                    case 20: // Package
+                        in.skipBytes(2);
+                        break;
+                    case 15: // MethodHandle
+                        in.skipBytes(3);
+                        break;
+                    case 3: // Integer
+                    case 4: // Float
+                    case 9: // Fieldref
+                    case 10: // Methodref
+                    case 11: // InterfaceMethodref
+                    case 12: // NameAndType
+                    case 17: // Dynamic
+                    case 18: // InvokeDynamic
+                        in.skipBytes(4);
+                        break;
+                    default:
+                        return null; // unknown constant
+                }
+            }
+            in.skipBytes(6); // access flags, this and super class
+            in.skipBytes(2 * in.readUnsignedShort()); // interfaces
+            for (int members = 0; members < 2; members++) { // fields, then methods
+                int count = in.readUnsignedShort();
+                for (int i = 0; i < count; i++) {
+                    in.skipBytes(6); // access flags, name, descriptor
+                    skipAttributes(in);
+                }
+            }
+            int count = in.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                int nameIndex = in.readUnsignedShort();
+                int length = in.readInt();
+                if ("SourceFile".equals(utf8[nameIndex])) {
+                    return utf8[in.readUnsignedShort()];
+                }
+                in.skipBytes(length);
+            }
+        } catch (IOException ex) { // truncated
+        } catch (ArrayIndexOutOfBoundsException ex) { // bad constant pool index
+        }
+        return null;
+    }
+
+    protected static void skipAttributes(DataInputStream in) throws IOException {
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            in.skipBytes(2);
+            in.skipBytes(in.readInt());
+        }
+    }
+
+    protected static byte[] readBytes(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    protected static File classFile(File folder, String name) {
+        return new File(folder, name.replace('.', File.separatorChar) + ".class");
+    }
+}
@@ -18,6 +18,7 @@
 package com.martinleopold.mode.debug;
 
 import com.sun.jdi.ReferenceType;
+import com.sun.jdi.ThreadReference;
 
 /**
  * Listener to be notified when a class is loaded in the debugger. Used by
@@ -32,6 +33,9 @@ public interface ClassLoadListener {
      * Event handler called when a class is loaded.
      *
      * @param theClass the class
+     * @param thread the thread that loaded the class, suspended while
+     * listeners are notified. Not necessarily the thread the session is
+     * paused in
      */
-    public void classLoaded(ReferenceType theClass);
+    public void classLoaded(ReferenceType theClass, ThreadReference thread);
 }
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 Martin Leopold <m@martinleopold.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package com.martinleopold.mode.debug;
+
+import com.sun.jdi.ReferenceType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the classes loaded in the debuggee VM. Looks up classes by name
+ * and finds a class together with all its nested classes (Outer$Inner$...)
+ * using a trie over the $-separated parts of the class names. Thread safe.
+ *
+ * @author Martin Leopold <m@martinleopold.com>
+ */
+public class ClassRegistry {
+
+    protected Map<String, ReferenceType> byName = new HashMap(); // class name -> class
+    protected TrieNode root = new TrieNode(); // nested class trie. children of root are the top-level classes
+
+    /**
+     * Node of the nested class trie. Holds the class of the path leading to
+     * it, if loaded, and the nodes of the nested classes.
+     */
+    protected static class TrieNode {
+
+        ReferenceType type; // the class, null if not (yet) loaded
+        Map<String, TrieNode> children = new HashMap(); // simple nested class name -> node
+    }
+
+    /**
+     * Add a loaded class.
+     *
+     * @param type the class
+     */
+    public synchronized void add(ReferenceType type) {
+        String name = type.name();
+        byName.put(name, type);
+        TrieNode node = root;
+        for (String part : name.split("\\$")) {
+            TrieNode child = node.children.get(part);
+            if (child == null) {
+                child = new TrieNode();
+                node.children.put(part, child);
+            }
+            node = child;
+        }
+        node.type = type;
+    }
+
+    /**
+     * Get a class by name.
+     *
+     * @param name the fully qualified class name
+     * @return the class, or null if not loaded
+     */
+    public synchronized ReferenceType get(String name) {
+        if (name == null) {
+            return null;
+        }
+        return byName.get(name);
+    }
+
+    /**
+     * Get a class and all of its loaded nested classes.
+     *
+     * @param name the name of the outer class
+     * @return the loaded classes, outer class first. Empty if none loaded
+     */
+    public synchronized List<ReferenceType> getWithNested(String name) {
+        List<ReferenceType> types = new ArrayList();
+        if (name == null) {
+            return types;
+        }
+        TrieNode node = root;
+        for (String part : name.split("\\$")) {
+            node = node.children.get(part);
+            if (node == null) {
+                return types;
+            }
+        }
+        collect(node, types);
+        return types;
+    }
+
+    protected void collect(TrieNode node, List<ReferenceType> types) {
+        if (node.type != null) {
+            types.add(node.type);
+        }
+        for (TrieNode child : node.children.values()) {
+            collect(child, types);
+        }
+    }
+
+    /**
+     * Remove all classes, e.g. when the VM disconnected.
+     */
+    public synchronized void clear() {
+        byName.clear();
+        root = new TrieNode();
+    }
+
+    /**
+     * Get the name of the top-level class of a (possibly nested) class.
+     *
+     * @param name a class name, e.g. Outer$Inner
+     * @return the top-level class name, e.g. Outer
+     */
+    public static String topLevelName(String name) {
+        int i = name.indexOf('$');
+        return i < 0 ? name : name.substring(0, i);
+    }
+}
@@ -18,7 +18,8 @@
 package com.martinleopold.mode.debug;
 
 import java.io.*;
-import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
 import processing.app.Base;
 import processing.app.SketchException;
 import processing.core.PApplet;
@@ -30,6 +31,41 @@ import processing.core.PApplet;
  * @author Martin Leopold <m@martinleopold.com>
  */
 public class Compiler extends processing.mode.java.Compiler {
+
+  /**
+   * Flags passed to ECJ, besides classpath and output folder. Part of the
+   * {@link BuildCache} key, so changing them invalidates cached builds.
+   */
+  static public final String[] FLAGS = new String[] {
+    "-g",
+    "-Xemacs",
+    //"-noExit",  // not necessary for ecj
+    "-source", "1.6",
+    "-target", "1.6",
+    "-nowarn" // we're not currently interested in warnings (works in ecj)
+  };
+
+  /**
+   * Get the options for compiling into memory through javax.tools.
+   *
+   * @param classPath the classpath to compile against, or null
+   * @return the flags (without the ones only affecting ECJ's console output)
+   * and the classpath
+   */
+  static public List<String> options(String classPath) {
+    List<String> options = new ArrayList<String>();
+    for (String flag : FLAGS) {
+      if (!flag.equals("-Xemacs")) { // errors are formatted by the compiler service
+        options.add(flag);
+      }
+    }
+    if (classPath != null) {
+      options.add("-classpath");
+      options.add(classPath);
+    }
+    return options;
+  }
+
    /**
    * Compile with ECJ. See http://j.mp/8paifz for documentation.
    *
@@ -44,21 +80,30 @@ public class Compiler extends processing.mode.java.Compiler {
 //                         String sketchClassPath,
 //                         String bootClassPath) throws RunnerException {
   static public boolean compile(DebugBuild build) throws SketchException {
+    return compile(build, Base.listFiles(build.getSrcFolder(), false, ".java"), build.getClassPath());
+  }
+
+  /**
+   * Compile some of the sources of a build with ECJ. Used for incremental
+   * builds, where the classes of the other sources are already in the bin
+   * folder and on the classpath.
+   *
+   * @param build the build to compile
+   * @param sourceFiles paths of the source files to compile
+   * @param classPath the classpath to compile against
+   * @return true if successful.
+   * @throws SketchException Only if there's a problem. Only then.
+   */
+  static public boolean compile(DebugBuild build, String[] sourceFiles, String classPath) throws SketchException {
 
     // This will be filled in if anyone gets angry
     SketchException exception = null;
     boolean success = false;
 
-    String baseCommand[] = new String[] {
-      "-g",
-      "-Xemacs",
-      //"-noExit",  // not necessary for ecj
-      "-source", "1.6",
-      "-target", "1.6",
-      "-classpath", build.getClassPath(),
-      "-nowarn", // we're not currently interested in warnings (works in ecj)
+    String baseCommand[] = PApplet.concat(FLAGS, new String[] {
+      "-classpath", classPath,
       "-d", build.getBinFolder().getAbsolutePath() // output the classes in the buildPath
-    };
+    });
     //PApplet.println(baseCommand);
 
     // make list of code files that need to be compiled
@@ -73,8 +118,6 @@ public class Compiler extends processing.mode.java.Compiler {
 //        sourceFiles[sourceCount++] = path;
 //      }
 //    }
-    String[] sourceFiles = Base.listFiles(build.getSrcFolder(), false, ".java");
-
 //    String[] command = new String[baseCommand.length + sourceFiles.length];
 //    System.arraycopy(baseCommand, 0, command, 0, baseCommand.length);
 //    // append each of the files to the command string
@@ -108,26 +151,15 @@ public class Compiler extends processing.mode.java.Compiler {
       //CompilationProgress progress = null;
       //success = BatchCompiler.compile(command, outWriter, writer, progress);
 
-      // Version that *is* dynamically loaded. First gets the mode class loader
-      // so that it can grab the compiler JAR files from it.
-
-      ClassLoader loader = build.getMode().getJavaModeClassLoader();
-      //ClassLoader loader = build.getMode().getClassLoader();
-      //ClassLoader loader = ClassLoader.getSystemClassLoader();
-
-      try {
-        Class batchClass =
-          Class.forName("org.eclipse.jdt.core.compiler.batch.BatchCompiler", false, loader);
-        Class progressClass =
-          Class.forName("org.eclipse.jdt.core.compiler.CompilationProgress", false, loader);
-        Class[] compileArgs =
-          new Class[] { String[].class, PrintWriter.class, PrintWriter.class, progressClass };
-        Method compileMethod = batchClass.getMethod("compile", compileArgs);
-        success = (Boolean)
-          compileMethod.invoke(null, new Object[] { command, outWriter, writer, null });
-      } catch (Exception e) {
-        e.printStackTrace();
-        throw new SketchException("Unknown error inside the compiler.");
+      // Version that *is* dynamically loaded. The mode's compiler service
+      // looks up ECJ through the java mode class loader once and keeps it warm.
+      // Compiles into memory if the build asks for it, the build then writes
+      // the changed classes to the bin folder.
+      CompilerService service = build.getMode().getCompilerService();
+      if (build.isCompiledInMemory()) {
+        success = service.compile(sourceFiles, options(classPath), build.getClassFiles(), writer);
+      } else {
+        success = service.compile(command, outWriter, writer);
       }
 
       // Close out the stream for good measure
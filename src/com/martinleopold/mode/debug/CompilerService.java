@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2015 Martin Leopold <m@martinleopold.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package com.martinleopold.mode.debug;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import processing.app.Base;
+import processing.app.SketchException;
+import processing.core.PApplet;
+
+/**
+ * Long-lived access to the ECJ batch compiler from java mode. Looks up the
+ * compiler once instead of on every build, and can warm it up in the
+ * background (loading its classes and letting the JIT compile its hot paths)
+ * before the first debug build. Can also compile into memory through ECJ's
+ * javax.tools implementation, if available. Logs the duration of each
+ * compile. Held by {@link DebugMode}. Compiles are serialized, ECJ's batch
+ * compiler isn't meant to be run concurrently.
+ *
+ * @author Martin Leopold <m@martinleopold.com>
+ */
+public class CompilerService {
+
+    protected static final int WARMUP_RUNS = 3; // number of warmup compiles
+    protected static final String WARMUP_CLASS = "Warmup"; // name of the class compiled for warmup
+    protected DebugMode mode; // the mode, provides the class loader with ECJ
+    protected Method compileMethod; // BatchCompiler.compile(String[], PrintWriter, PrintWriter, CompilationProgress), looked up on first use
+    protected JavaCompiler javaCompiler; // javax.tools compiler for in-memory builds, looked up on first use
+    protected boolean javaCompilerLookedUp = false; // true after looking for javaCompiler, even if none was found
+    protected volatile Thread warmupThread; // the running warmup, null when not warming up
+    protected int compiles = 0; // number of compiles, including warmup
+
+    public CompilerService(DebugMode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Get ECJ's batch compile method. Looked up through the java mode class
+     * loader on first use.
+     *
+     * @return the compile method
+     * @throws SketchException if ECJ couldn't be found
+     */
+    protected synchronized Method compileMethod() throws SketchException {
+        if (compileMethod == null) {
+            long start = System.nanoTime();
+            try {
+                ClassLoader loader = mode.getJavaModeClassLoader();
+                Class batchClass =
+                        Class.forName("org.eclipse.jdt.core.compiler.batch.BatchCompiler", false, loader);
+                Class progressClass =
+                        Class.forName("org.eclipse.jdt.core.compiler.CompilationProgress", false, loader);
+                Class[] compileArgs =
+                        new Class[]{String[].class, PrintWriter.class, PrintWriter.class, progressClass};
+                compileMethod = batchClass.getMethod("compile", compileArgs);
+            } catch (Exception e) {
+                e.printStackTrace();
+                throw new SketchException("Unknown error inside the compiler.");
+            }
+            Logger.getLogger(CompilerService.class.getName()).log(Level.INFO, "compiler lookup took {0} ms", (System.nanoTime() - start) / 1000000);
+        }
+        return compileMethod;
+    }
+
+    /**
+     * Run the compiler.
+     *
+     * @param command the command line arguments for ECJ
+     * @param out receives regular output
+     * @param err receives errors
+     * @return true if successful
+     * @throws SketchException if the compiler couldn't be run
+     */
+    public synchronized boolean compile(String[] command, PrintWriter out, PrintWriter err) throws SketchException {
+        Method method = compileMethod();
+        long start = System.nanoTime();
+        boolean success;
+        try {
+            success = (Boolean) method.invoke(null, new Object[]{command, out, err, null});
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new SketchException("Unknown error inside the compiler.");
+        }
+        compiles++;
+        Logger.getLogger(CompilerService.class.getName()).log(Level.INFO, "compile #{0} took {1} ms", new Object[]{compiles, (System.nanoTime() - start) / 1000000});
+        return success;
+    }
+
+    /**
+     * Get ECJ's javax.tools compiler for in-memory builds, loaded through the
+     * java mode class loader. Never the system compiler: javac rejects the
+     * 1.6 source and target levels on newer JDKs and its messages don't match
+     * the ones translated for ECJ. Without ECJ's implementation, builds go
+     * through the batch compiler and the disk.
+     *
+     * @return the compiler, or null if there's none
+     */
+    protected synchronized JavaCompiler javaCompiler() {
+        if (!javaCompilerLookedUp) {
+            javaCompilerLookedUp = true;
+            try {
+                Class eclipseCompiler =
+                        Class.forName("org.eclipse.jdt.internal.compiler.tool.EclipseCompiler", true, mode.getJavaModeClassLoader());
+                javaCompiler = (JavaCompiler) eclipseCompiler.newInstance();
+            } catch (ClassNotFoundException ex) { // an ECJ without javax.tools support
+                javaCompiler = null;
+            } catch (Throwable t) { // a class missing in an old ECJ, or a failing constructor
+                Logger.getLogger(CompilerService.class.getName()).log(Level.WARNING, "no in-memory compiler", t);
+                javaCompiler = null;
+            }
+            Logger.getLogger(CompilerService.class.getName()).log(Level.INFO, "in-memory compiler: {0}", javaCompiler);
+        }
+        return javaCompiler;
+    }
+
+    /**
+     * Check whether sources can be compiled into memory.
+     *
+     * @return true if an in-memory compiler is available
+     */
+    public boolean canCompileInMemory() {
+        return javaCompiler() != null;
+    }
+
+    /**
+     * Compile sources into memory. Errors are printed to err in the same
+     * format ECJ uses with -Xemacs (file:line: error: message), so they can be
+     * parsed the same way.
+     *
+     * @param sourceFiles paths of the source files to compile
+     * @param options compiler options, e.g. flags and classpath
+     * @param classFiles receives the compiled classes
+     * @param err receives errors
+     * @return true if successful
+     * @throws SketchException if there's no in-memory compiler or it couldn't
+     * be run
+     */
+    public synchronized boolean compile(String[] sourceFiles, List<String> options, final ClassFiles classFiles, PrintWriter err) throws SketchException {
+        JavaCompiler compiler = javaCompiler();
+        if (compiler == null) {
+            throw new SketchException("No in-memory compiler available.");
+        }
+        long start = System.nanoTime();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector();
+        StandardJavaFileManager files = compiler.getStandardFileManager(diagnostics, null, null);
+        JavaFileManager memory = new ForwardingJavaFileManager<StandardJavaFileManager>(files) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) throws IOException {
+                if (kind != JavaFileObject.Kind.CLASS) {
+                    return super.getJavaFileForOutput(location, className, kind, sibling);
+                }
+                return new ClassOutput(className, classFiles);
+            }
+        };
+        boolean success;
+        try {
+            success = compiler.getTask(null, memory, diagnostics, options, null, files.getJavaFileObjects(sourceFiles)).call();
+            memory.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new SketchException("Unknown error inside the compiler.");
+        }
+        for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+            if (d.getKind() == Diagnostic.Kind.ERROR) {
+                String fileName = d.getSource() == null ? "" : new File(d.getSource().toUri().getPath()).getName();
+                err.println(fileName + ":" + d.getLineNumber() + ": error: " + d.getMessage(null));
+            }
+        }
+        compiles++;
+        Logger.getLogger(CompilerService.class.getName()).log(Level.INFO, "in-memory compile #{0} of {1} files took {2} ms", new Object[]{compiles, sourceFiles.length, (System.nanoTime() - start) / 1000000});
+        return success;
+    }
+
+    /**
+     * A compiled class, kept in memory. Added to a {@link ClassFiles} when
+     * the compiler is done writing it.
+     */
+    protected static class ClassOutput extends SimpleJavaFileObject {
+
+        protected String className; // binary class name
+        protected ClassFiles classFiles; // where to put the class when written
+
+        protected ClassOutput(String className, ClassFiles classFiles) {
+            super(URI.create("mem:///" + className.replace('.', '/') + JavaFileObject.Kind.CLASS.extension), JavaFileObject.Kind.CLASS);
+            this.className = className;
+            this.classFiles = classFiles;
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return new ByteArrayOutputStream() {
+                @Override
+                public void close() {
+                    classFiles.put(className, toByteArray());
+                }
+            };
+        }
+    }
+
+    /**
+     * Warm up the compiler in the background by compiling a small class a few
+     * times. Does nothing if already warmed up or warming up. Debug builds
+     * started meanwhile wait for the current warmup run to finish.
+     */
+    public synchronized void warmUp() {
+        if (compiles > 0 || warmupThread != null) {
+            return;
+        }
+        warmupThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                File folder = null;
+                try {
+                    folder = Base.createTempFolder("debug", "warmup", null);
+                    File source = new File(folder, WARMUP_CLASS + ".java");
+                    Base.saveFile("public class " + WARMUP_CLASS + " {\n"
+                            + "    java.util.List<String> list = new java.util.ArrayList<String>();\n"
+                            + "    int sum(int[] values) { int s = 0; for (int v : values) { s += v; } return s; }\n"
+                            + "}\n", source);
+                    String[] command = PApplet.concat(Compiler.FLAGS, new String[]{
+                        "-d", folder.getAbsolutePath(),
+                        source.getAbsolutePath()
+                    });
+                    boolean inMemory = canCompileInMemory(); // warm up the path debug builds will take
+                    for (int i = 0; i < WARMUP_RUNS; i++) {
+                        StringWriter discard = new StringWriter();
+                        if (inMemory) {
+                            compile(new String[]{source.getAbsolutePath()}, Compiler.options(null), new ClassFiles(), new PrintWriter(discard));
+                        } else {
+                            compile(command, new PrintWriter(discard), new PrintWriter(discard));
+                        }
+                    }
+                    Logger.getLogger(CompilerService.class.getName()).log(Level.INFO, "compiler warmup took {0} ms", (System.nanoTime() - start) / 1000000);
+                } catch (IOException ex) {
+                    Logger.getLogger(CompilerService.class.getName()).log(Level.WARNING, "compiler warmup failed", ex);
+                } catch (SketchException ex) {
+                    Logger.getLogger(CompilerService.class.getName()).log(Level.WARNING, "compiler warmup failed", ex);
+                } finally {
+                    if (folder != null) {
+                        Base.removeDir(folder);
+                    }
+                    warmupThread = null;
+                }
+            }
+        }, "Debug Mode Compiler Warmup");
+        warmupThread.setDaemon(true);
+        warmupThread.setPriority(Thread.MIN_PRIORITY);
+        warmupThread.start();
+    }
+}
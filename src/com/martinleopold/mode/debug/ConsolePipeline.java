@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2015 Martin Leopold <m@martinleopold.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package com.martinleopold.mode.debug;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.Timer;
+
+/**
+ * Forwards the debuggee's output to the console without letting either side
+ * stall the other. A reader thread drains the output pipe in large chunks
+ * into a bounded buffer of lines, so the debuggee never blocks on a full
+ * pipe. A timer writes the buffered lines to the console at a fixed rate, in
+ * one batch, on the event dispatch thread. When output arrives faster than
+ * the console can show it, the oldest buffered lines are dropped and
+ * summarized in the console. Output written to the console by other means,
+ * i.e. error output, should be preceded by {@link #flush()} to keep the order.
+ * Counts lines read and dropped.
+ *
+ * @author Martin Leopold <m@martinleopold.com>
+ */
+public class ConsolePipeline implements Runnable, ActionListener {
+
+    public static final int CHUNK_SIZE = 16384; // chars read from the pipe at once
+    public static final int MAX_LINES = 500; // lines kept between flushes, older lines are dropped
+    public static final int FLUSH_INTERVAL = 100; // ms between writes to the console
+    protected final Reader in; // the debuggee's output
+    protected final PrintStream out; // the console
+    protected final Thread thread; // reads the output
+    protected final Timer timer; // writes to the console. fires on the event dispatch thread
+    protected final Object lock = new Object(); // guards the buffer and counters
+    protected final Object writeLock = new Object(); // held while writing to the console, so batches aren't interleaved
+    protected ArrayDeque<String> lines = new ArrayDeque(); // complete lines not yet written, including line breaks
+    protected StringBuilder partial = new StringBuilder(); // the current line, not yet terminated
+    protected int pendingDropped = 0; // lines dropped since the last write
+    protected long linesRead = 0; // lines read in total
+    protected long linesDropped = 0; // lines dropped in total
+    protected volatile boolean eof = false; // true when the output is closed
+
+    /**
+     * Create a pipeline. Call {@link #start()} to start forwarding.
+     *
+     * @param in the debuggee's output stream
+     * @param out where to write, i.e. the console
+     * @param name name of the reader thread
+     */
+    public ConsolePipeline(InputStream in, PrintStream out, String name) {
+        this.in = new InputStreamReader(in);
+        this.out = out;
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        timer = new Timer(FLUSH_INTERVAL, this);
+        timer.setCoalesce(true);
+    }
+
+    /**
+     * Start reading and writing.
+     */
+    public void start() {
+        thread.start();
+        timer.start();
+    }
+
+    /**
+     * Get the reader thread, e.g. to wait for the output to end.
+     *
+     * @return the thread
+     */
+    public Thread getThread() {
+        return thread;
+    }
+
+    /**
+     * Read the output until it's closed. Runs on the reader thread.
+     */
+    @Override
+    public void run() {
+        char[] buf = new char[CHUNK_SIZE];
+        try {
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                append(buf, n);
+            }
+        } catch (IOException ex) {
+            // the vm exited, the pipe is closed
+        } finally {
+            eof = true;
+        }
+    }
+
+    /**
+     * Split a chunk into lines and buffer them. Drops the oldest lines when
+     * more than {@link #MAX_LINES} are buffered.
+     *
+     * @param buf the chunk
+     * @param length number of chars in the chunk
+     */
+    protected void append(char[] buf, int length) {
+        synchronized (lock) {
+            int start = 0;
+            for (int i = 0; i < length; i++) {
+                if (buf[i] == '\n') {
+                    partial.append(buf, start, i + 1 - start);
+                    lines.addLast(partial.toString());
+                    partial.setLength(0);
+                    start = i + 1;
+                    linesRead++;
+                    if (lines.size() > MAX_LINES) {
+                        lines.removeFirst();
+                        pendingDropped++;
+                        linesDropped++;
+                    }
+                }
+            }
+            partial.append(buf, start, length - start);
+            if (partial.length() > CHUNK_SIZE) { // a very long line, buffer it as a line so it can be dropped
+                lines.addLast(partial.toString());
+                partial.setLength(0);
+                if (lines.size() > MAX_LINES) {
+                    lines.removeFirst();
+                    pendingDropped++;
+                    linesDropped++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the buffered lines to the console. Called by the timer on the
+     * event dispatch thread. Stops when the output is closed and everything
+     * is written.
+     *
+     * @param ae the timer event
+     */
+    @Override
+    public void actionPerformed(ActionEvent ae) {
+        boolean done = eof; // read before draining, so nothing read after is missed
+        flush();
+        if (done) {
+            timer.stop();
+            synchronized (lock) {
+                Logger.getLogger(ConsolePipeline.class.getName()).log(Level.INFO, "{0}: {1} lines, {2} skipped", new Object[]{thread.getName(), linesRead, linesDropped});
+            }
+        }
+    }
+
+    /**
+     * Write the buffered lines to the console now, e.g. before error output
+     * is written, so the console shows both in the order they were read. Can
+     * be called from any thread.
+     */
+    public void flush() {
+        synchronized (writeLock) {
+            ArrayDeque<String> batch;
+            int dropped;
+            String rest = null;
+            synchronized (lock) {
+                if (lines.isEmpty() && partial.length() == 0 && pendingDropped == 0) {
+                    return;
+                }
+                batch = lines;
+                lines = new ArrayDeque();
+                dropped = pendingDropped;
+                pendingDropped = 0;
+                if (partial.length() > 0) { // e.g. print() without a line break
+                    rest = partial.toString();
+                    partial.setLength(0);
+                }
+            }
+            StringBuilder sb = new StringBuilder();
+            if (dropped > 0) {
+                sb.append("[... ").append(dropped).append(dropped == 1 ? " line" : " lines").append(" of output skipped ...]\n");
+            }
+            for (String line : batch) {
+                sb.append(line);
+            }
+            if (rest != null) {
+                sb.append(rest);
+            }
+            out.print(sb);
+            out.flush();
+        }
+    }
+
+    /**
+     * Get the number of lines read so far.
+     *
+     * @return the number of lines
+     */
+    public long getLinesRead() {
+        synchronized (lock) {
+            return linesRead;
+        }
+    }
+
+    /**
+     * Get the number of lines dropped so far, because the console couldn't
+     * keep up.
+     *
+     * @return the number of lines
+     */
+    public long getLinesDropped() {
+        synchronized (lock) {
+            return linesDropped;
+        }
+    }
+}
@@ -17,22 +17,95 @@
  */
 package com.martinleopold.mode.debug;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import processing.app.Base;
 import processing.app.Sketch;
 import processing.app.SketchException;
 import processing.mode.java.JavaBuild;
 
 /**
- * Copied from processing.mode.java.JavaBuild, just changed compiler.
+ * Copied from processing.mode.java.JavaBuild, just changed compiler. Reuses
+ * the previous build of the sketch (see {@link BuildCache}) if nothing
+ * changed, and only recompiles changed sources if possible.
  *
  * @author Martin Leopold <m@martinleopold.com>
  */
 public class DebugBuild extends JavaBuild {
 
+    protected SketchIndex sketchIndex; // tabs and line offsets of this build, set after preprocessing
+    protected BuildCache.Entry previous; // the previous build of this sketch, its folders are reused. null for a fresh build
+    protected boolean reused = false; // true if the previous build is used as is, without preprocessing and compiling
+    protected Map<String, String> sourceHashes = new HashMap(); // generated source file name -> hash, set after preprocessing
+    protected ClassFiles classFiles; // the compiled classes of this build, set after compiling
+    protected boolean compiledInMemory = false; // true if compiling into classFiles, false if compiling to disk
+    protected volatile boolean cancelled = false; // set to stop the build before compiling
+    protected boolean foldersTouched = false; // true once the build started writing to its src and bin folders
+
     public DebugBuild(Sketch sketch) {
         super(sketch);
     }
 
+    /**
+     * Build the sketch. Reuses the previous build if the tabs, classpath and
+     * compiler flags are unchanged. Otherwise builds into the previous build's
+     * folders (if still valid), or into new temporary folders.
+     *
+     * @param sizeWarning
+     * @return main class name or null on compile failure
+     * @throws SketchException
+     */
+    @Override
+    public String build(boolean sizeWarning) throws SketchException {
+        BuildCache cache = getMode().getBuildCache();
+        String sketchHash = BuildCache.sketchHash(sketch, Compiler.FLAGS);
+        previous = cache.get(sketch);
+        if (previous != null && (!previous.isValid() || !previous.tabNames.equals(tabNames()))) {
+            previous = null; // folders gone, libraries changed or tabs added/removed. start over
+        }
+
+        if (previous != null && previous.sketchHash.equals(sketchHash)) {
+            // nothing changed since the last build
+            srcFolder = previous.srcFolder;
+            binFolder = previous.binFolder;
+            sketchClassName = previous.mainClassName;
+            sourceHashes = previous.sourceHashes;
+            classFiles = previous.classFiles;
+            sketchIndex = new SketchIndex(sketch, loadSourceMap());
+            reused = true;
+            Logger.getLogger(DebugBuild.class.getName()).log(Level.INFO, "sketch unchanged, reusing build in {0}", binFolder);
+            return sketchClassName;
+        }
+
+        try {
+            File src = previous != null ? previous.srcFolder : sketch.makeTempFolder();
+            File bin = previous != null ? previous.binFolder : sketch.makeTempFolder();
+            String mainClassName = build(src, bin, sizeWarning);
+            if (mainClassName != null && sketchHash.equals(BuildCache.sketchHash(sketch, Compiler.FLAGS))) {
+                cache.put(sketch, new BuildCache.Entry(sketchHash, tabNames(), getClassPath(), getJavaLibraryPath(), srcFolder, binFolder, mainClassName, getFoundMain(), sourceHashes, classFiles));
+            } else {
+                cache.remove(sketch); // failed, or the tabs changed while building (e.g. in the background)
+            }
+            return mainClassName;
+        } catch (SketchException ex) {
+            if (foldersTouched) {
+                cache.remove(sketch); // folders might be half built, e.g. preprocessed but cancelled before compiling
+            }
+            throw ex;
+        }
+    }
+
     /**
      * Preprocess and compile sketch. Copied from
      * processing.mode.java.JavaBuild, just changed compiler.
@@ -51,8 +124,17 @@ public class DebugBuild extends JavaBuild {
 //    Base.openFolder(srcFolder);
 //    Base.openFolder(binFolder);
 
+        if (cancelled) {
+            throw new SketchException("Build cancelled."); // before touching the folders, which might be the previous build's
+        }
+        foldersTouched = true;
+
         // run the preprocessor
+        long start = System.nanoTime();
         String classNameFound = preprocess(srcFolder, sizeWarning);
+        long preprocessed = System.nanoTime();
+        sketchIndex = new SketchIndex(sketch, writeSourceMap()); // preprocessor offsets are set now
+        long indexed = System.nanoTime();
 
         // compile the program. errors will happen as a RunnerException
         // that will bubble up to whomever called build().
@@ -60,13 +142,299 @@ public class DebugBuild extends JavaBuild {
 //    String bootClasses = System.getProperty("sun.boot.class.path");
 //    if (compiler.compile(this, srcFolder, binFolder, primaryClassName, getClassPath(), bootClasses)) {
 
-        if (Compiler.compile(this)) { // use compiler with debug info enabled (-g switch flicked)
+        if (cancelled) {
+            throw new SketchException("Build cancelled.");
+        }
+        boolean success = compile(); // use compiler with debug info enabled (-g switch flicked)
+        Logger.getLogger(DebugBuild.class.getName()).log(Level.INFO, "build phases: preprocess {0} ms, source map {1} ms, compile {2} ms", new Object[]{
+                    (preprocessed - start) / 1000000, (indexed - preprocessed) / 1000000, (System.nanoTime() - indexed) / 1000000});
+        if (success) {
             sketchClassName = classNameFound;
             return classNameFound;
         }
         return null;
     }
 
+    /**
+     * Compile the preprocessed sources. Only compiles the sources that changed
+     * since the previous build, if no unchanged source refers to them.
+     * Otherwise compiles all sources.
+     *
+     * @return true if successful
+     * @throws SketchException
+     */
+    protected boolean compile() throws SketchException {
+        Map<String, String> sources = new HashMap(); // file name -> content
+        sourceHashes = new HashMap();
+        for (String path : Base.listFiles(srcFolder, false, ".java")) {
+            File file = new File(path);
+            try {
+                String source = Base.loadFile(file);
+                sources.put(file.getName(), source);
+                sourceHashes.put(file.getName(), BuildCache.hash(source));
+            } catch (IOException ex) {
+                Logger.getLogger(DebugBuild.class.getName()).log(Level.WARNING, null, ex);
+                sourceHashes.put(file.getName(), ""); // never matches, so it's recompiled next time
+            }
+        }
+
+        List<String> changed = changedSources(sources);
+        ClassFiles before = previous != null ? previous.classFiles : null; // the classes in the bin folder
+        if (changed != null && changed.isEmpty()) {
+            Logger.getLogger(DebugBuild.class.getName()).log(Level.INFO, "generated sources unchanged, reusing classes in {0}", binFolder);
+            classFiles = before;
+            return true;
+        }
+
+        String[] paths;
+        String classPath;
+        if (changed == null) {
+            Logger.getLogger(DebugBuild.class.getName()).log(Level.INFO, "compiling all sources");
+            paths = Base.listFiles(srcFolder, false, ".java");
+            classPath = getClassPath();
+            classFiles = new ClassFiles();
+        } else {
+            Logger.getLogger(DebugBuild.class.getName()).log(Level.INFO, "compiling changed sources: {0}", changed);
+            paths = new String[changed.size()];
+            classFiles = new ClassFiles(before);
+            for (int i = 0; i < paths.length; i++) {
+                String fileName = changed.get(i);
+                classFiles.removeSource(fileName);
+                paths[i] = new File(srcFolder, fileName).getAbsolutePath();
+            }
+            // the unchanged classes are found in the bin folder
+            classPath = binFolder.getAbsolutePath() + File.pathSeparator + getClassPath();
+        }
+
+        compiledInMemory = getMode().getCompilerService().canCompileInMemory();
+        if (!compiledInMemory) {
+            // fall back to compiling to disk
+            if (changed == null) {
+                if (previous != null) {
+                    Base.removeDescendants(binFolder); // drop the classes of the previous build
+                }
+            } else {
+                for (String fileName : changed) {
+                    deleteClasses(before.compiledFrom(fileName));
+                }
+            }
+        }
+        boolean success = Compiler.compile(this, paths, classPath);
+        if (!success) {
+            return false;
+        }
+        try {
+            if (compiledInMemory) {
+                // deliver the classes to the debuggee through the bin folder
+                int written = classFiles.write(binFolder, before);
+                Logger.getLogger(DebugBuild.class.getName()).log(Level.INFO, "wrote {0} of {1} classes to {2}", new Object[]{written, classFiles.names().size(), binFolder});
+            } else {
+                classFiles = ClassFiles.read(binFolder);
+            }
+        } catch (IOException ex) {
+            throw new SketchException("Error while writing classes. (" + ex.getMessage() + ")");
+        }
+        return true;
+    }
+
+    /**
+     * Find the sources that changed since the previous build.
+     *
+     * @param sources the current sources, file name -> content
+     * @return the file names of the changed sources, or null if everything
+     * needs to be compiled
+     */
+    protected List<String> changedSources(Map<String, String> sources) {
+        if (previous == null || !previous.classPath.equals(getClassPath()) || !previous.sourceHashes.keySet().equals(sources.keySet())) {
+            return null;
+        }
+        List<String> changed = new ArrayList();
+        for (String fileName : sources.keySet()) {
+            if (!sourceHashes.get(fileName).equals(previous.sourceHashes.get(fileName))) {
+                changed.add(fileName);
+            }
+        }
+        if (previous.classFiles == null) {
+            return null; // don't know which classes the sources declare
+        }
+        // an unchanged source referring to a class of a changed source would need to be recompiled as well
+        for (String fileName : changed) {
+            for (String className : topLevelNames(fileName)) {
+                Pattern reference = Pattern.compile("\\b" + Pattern.quote(className) + "\\b");
+                for (Map.Entry<String, String> source : sources.entrySet()) {
+                    if (!changed.contains(source.getKey()) && reference.matcher(source.getValue()).find()) {
+                        return null;
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Get the top level classes of a source, as compiled by the previous
+     * build. Includes the class named like the file, in case it's new.
+     *
+     * @param fileName the file name of the source
+     * @return the simple names of the top level classes
+     */
+    protected Set<String> topLevelNames(String fileName) {
+        Set<String> names = new HashSet();
+        names.add(fileName.substring(0, fileName.length() - ".java".length()));
+        for (String name : previous.classFiles.compiledFrom(fileName)) {
+            String topLevel = ClassRegistry.topLevelName(name);
+            names.add(topLevel.substring(topLevel.lastIndexOf('.') + 1));
+        }
+        return names;
+    }
+
+    /**
+     * Delete class files from the bin folder.
+     *
+     * @param classNames the binary names of the classes
+     */
+    protected void deleteClasses(Set<String> classNames) {
+        for (String name : classNames) {
+            ClassFiles.classFile(binFolder, name).delete();
+        }
+    }
+
+    /**
+     * Get the file names of the sketch's tabs, in order.
+     *
+     * @return the file names
+     */
+    protected List<String> tabNames() {
+        List<String> names = new ArrayList();
+        for (int i = 0; i < sketch.getCodeCount(); i++) {
+            names.add(sketch.getCode(i).getFileName());
+        }
+        return names;
+    }
+
+    /**
+     * Load the source map of this build from its file.
+     *
+     * @return the source map, or null if it couldn't be loaded
+     */
+    protected SourceMap loadSourceMap() {
+        File mapFile = getSourceMapFile();
+        if (!mapFile.exists()) {
+            return null;
+        }
+        try {
+            return SourceMap.load(mapFile);
+        } catch (IOException ex) {
+            Logger.getLogger(DebugBuild.class.getName()).log(Level.WARNING, "couldn't load source map, using tab offsets", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Cancel this build. A running build stops before preprocessing, or
+     * after preprocessing and before compiling, with a
+     * {@link SketchException}. In the latter case the cached build of the
+     * sketch is dropped, its sources were overwritten. Used for background
+     * builds.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Get the compiled classes of this build.
+     *
+     * @return the classes, or null if not compiled yet
+     */
+    public ClassFiles getClassFiles() {
+        return classFiles;
+    }
+
+    /**
+     * Check whether this build compiles into memory (see
+     * {@link #getClassFiles()}) instead of to the bin folder.
+     *
+     * @return true if compiling into memory
+     */
+    public boolean isCompiledInMemory() {
+        return compiledInMemory;
+    }
+
+    /**
+     * Check whether the previous build was reused as is, i.e. nothing was
+     * preprocessed or compiled.
+     *
+     * @return true if reused
+     */
+    public boolean isReused() {
+        return reused;
+    }
+
+    @Override
+    public String getClassPath() {
+        return reused ? previous.classPath : super.getClassPath(); // not set without preprocessing
+    }
+
+    @Override
+    public String getJavaLibraryPath() {
+        return reused ? previous.javaLibraryPath : super.getJavaLibraryPath();
+    }
+
+    @Override
+    public boolean getFoundMain() {
+        return reused ? previous.foundMain : super.getFoundMain(); // set by the preprocessor
+    }
+
+    /**
+     * Create the source map of the preprocessed main class, write it next to
+     * the generated source (sketchname.srcmap) and load it from there.
+     * Needs to be called after preprocessing.
+     *
+     * @return the source map, or null if it couldn't be created
+     */
+    protected SourceMap writeSourceMap() {
+        File javaFile = new File(srcFolder, sketch.getName() + ".java");
+        if (!javaFile.exists()) {
+            return null; // e.g. in a package folder
+        }
+        File mapFile = getSourceMapFile();
+        try {
+            List<String> javaLines = new ArrayList();
+            BufferedReader reader = new BufferedReader(new FileReader(javaFile));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    javaLines.add(line);
+                }
+            } finally {
+                reader.close();
+            }
+            SourceMap.create(sketch, javaLines).write(mapFile);
+            return SourceMap.load(mapFile);
+        } catch (IOException ex) {
+            Logger.getLogger(DebugBuild.class.getName()).log(Level.WARNING, "couldn't write source map, using tab offsets", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Get the source map file of this build.
+     *
+     * @return the source map file (might not exist)
+     */
+    public File getSourceMapFile() {
+        return new File(srcFolder, sketch.getName() + SourceMap.EXTENSION);
+    }
+
+    /**
+     * Get the index of the sketch's tabs as of this build.
+     *
+     * @return the index, or null if not built yet
+     */
+    public SketchIndex getSketchIndex() {
+        return sketchIndex;
+    }
+
     public DebugMode getMode() {
         return (DebugMode)mode;
     }
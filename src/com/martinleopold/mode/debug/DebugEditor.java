@@ -28,8 +28,10 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JMenu;
 import javax.swing.JMenuItem;
+import javax.swing.JOptionPane;
 import javax.swing.text.Document;
 import processing.app.*;
 import processing.app.syntax.JEditTextArea;
@@ -58,10 +60,13 @@ public class DebugEditor extends JavaEditor implements ActionListener {
     protected List<LineHighlight> breakpointedLines = new ArrayList(); // breakpointed lines
     protected LineHighlight currentLine; // line the debugger is currently suspended at
     protected final String breakpointMarkerComment = " //<>//"; // breakpoint marker comment
+    protected static final int DEFAULT_ATTACH_PORT = 8000; // suggested JDWP port for attaching
+    protected String lastAttachAddress = "localhost:" + DEFAULT_ATTACH_PORT; // last address attached to
     // menus
     protected JMenu debugMenu; // the debug menu
     // debugger control
     protected JMenuItem debugMenuItem;
+    protected JMenuItem attachMenuItem;
     protected JMenuItem continueMenuItem;
     protected JMenuItem stopMenuItem;
     // breakpoints
@@ -77,11 +82,17 @@ public class DebugEditor extends JavaEditor implements ActionListener {
     protected JMenuItem printThisMenuItem;
     protected JMenuItem printSourceMenuItem;
     protected JMenuItem printThreads;
+    protected JMenuItem eventStallBenchmarkMenuItem;
+    protected JMenuItem startupBenchmarkMenuItem;
     // variable inspector
     protected JMenuItem toggleVariableInspectorMenuItem;
+    protected JCheckBoxMenuItem backgroundBuildMenuItem;
+    protected JCheckBoxMenuItem vmPoolMenuItem;
+    protected JCheckBoxMenuItem classDataSharingMenuItem;
     // references
     protected DebugMode dmode; // the mode
     protected Debugger dbg; // the debugger
+    protected BuildScheduler buildScheduler; // builds the sketch in the background while editing
     protected VariableInspector vi; // the variable inspector frame
     protected TextArea ta; // the text area
 
@@ -94,6 +105,16 @@ public class DebugEditor extends JavaEditor implements ActionListener {
         // init controller class
         dbg = new Debugger(this);
 
+        // background builds, disabled until enabled in the debug menu
+        buildScheduler = new BuildScheduler(this);
+        buildScheduler.watch(currentDocument());
+
+        // the vm pool and class data sharing are shared by all editors
+        vmPoolMenuItem.setSelected(dmode.getVMPool().isEnabled());
+        classDataSharingMenuItem.setSelected(dmode.getCDSArchive().isEnabled());
+        classDataSharingMenuItem.setEnabled(CDSArchive.isSupported());
+        startupBenchmarkMenuItem.setEnabled(CDSArchive.isSupported());
+
         // variable inspector window
         vi = new VariableInspector(this);
 
@@ -135,6 +156,36 @@ public class DebugEditor extends JavaEditor implements ActionListener {
 //        // quit running debug session
 //        dbg.stopDebug();
 //    }
+    /**
+     * Ask for the address of a sketch running with a JDWP listener and attach
+     * the debugger to it.
+     */
+    protected void attachToRunningSketch() {
+        String address = (String) JOptionPane.showInputDialog(this,
+                "Start the sketch with the VM option\n"
+                + "-agentlib:jdwp=transport=dt_socket,server=y,suspend=n,address=" + DEFAULT_ATTACH_PORT + "\n"
+                + "then enter its address (host:port):",
+                "Attach to Running Sketch", JOptionPane.PLAIN_MESSAGE, null, null, lastAttachAddress);
+        if (address == null || address.trim().isEmpty()) {
+            return; // cancelled
+        }
+        address = address.trim();
+        String host = "localhost";
+        String port = address;
+        int colon = address.lastIndexOf(':');
+        if (colon != -1) {
+            host = address.substring(0, colon);
+            port = address.substring(colon + 1);
+        }
+        try {
+            int portNumber = Integer.parseInt(port);
+            lastAttachAddress = address;
+            dbg.attachDebug(host, portNumber);
+        } catch (NumberFormatException ex) {
+            statusError("Not a valid port: " + port);
+        }
+    }
+
     /**
      * Used instead of the windowClosing event handler, since it's not called on
      * mode switch. Called when closing the editor window. Stops running debug
@@ -145,6 +196,9 @@ public class DebugEditor extends JavaEditor implements ActionListener {
         //System.out.println("window dispose");
         // quit running debug session
         dbg.stopDebug();
+        // stop background builds, and the vm launched for them
+        buildScheduler.dispose();
+        dmode.getVMPool().discard(getSketch()); // the pooled vm might be another editor's
         // remove var.inspector
         vi.dispose();
         // original dispose
@@ -195,6 +249,8 @@ public class DebugEditor extends JavaEditor implements ActionListener {
 
         debugMenuItem = Toolkit.newJMenuItem("Debug", KeyEvent.VK_R);
         debugMenuItem.addActionListener(this);
+        attachMenuItem = new JMenuItem("Attach to Running Sketch...");
+        attachMenuItem.addActionListener(this);
         continueMenuItem = Toolkit.newJMenuItem("Continue", KeyEvent.VK_U);
         continueMenuItem.addActionListener(this);
         stopMenuItem = new JMenuItem("Stop");
@@ -222,11 +278,23 @@ public class DebugEditor extends JavaEditor implements ActionListener {
         printSourceMenuItem.addActionListener(this);
         printThreads = new JMenuItem("Print Threads");
         printThreads.addActionListener(this);
+        eventStallBenchmarkMenuItem = new JMenuItem("Measure Event Handling Stall");
+        eventStallBenchmarkMenuItem.addActionListener(this);
+        startupBenchmarkMenuItem = new JMenuItem("Measure Startup (Class Data Sharing)");
+        startupBenchmarkMenuItem.addActionListener(this);
 
         toggleVariableInspectorMenuItem = Toolkit.newJMenuItem("Toggle Variable Inspector", KeyEvent.VK_I);
         toggleVariableInspectorMenuItem.addActionListener(this);
 
+        backgroundBuildMenuItem = new JCheckBoxMenuItem("Build in Background");
+        backgroundBuildMenuItem.addActionListener(this);
+        vmPoolMenuItem = new JCheckBoxMenuItem("Keep Debugger VM Ready");
+        vmPoolMenuItem.addActionListener(this);
+        classDataSharingMenuItem = new JCheckBoxMenuItem("Share Core Classes (Java 13+)");
+        classDataSharingMenuItem.addActionListener(this);
+
         debugMenu.add(debugMenuItem);
+        debugMenu.add(attachMenuItem);
         debugMenu.add(continueMenuItem);
         debugMenu.add(stopMenuItem);
         debugMenu.addSeparator();
@@ -242,8 +310,14 @@ public class DebugEditor extends JavaEditor implements ActionListener {
         debugMenu.add(printThisMenuItem);
         debugMenu.add(printSourceMenuItem);
         debugMenu.add(printThreads);
+        debugMenu.add(eventStallBenchmarkMenuItem);
+        debugMenu.add(startupBenchmarkMenuItem);
         debugMenu.addSeparator();
         debugMenu.add(toggleVariableInspectorMenuItem);
+        debugMenu.addSeparator();
+        debugMenu.add(backgroundBuildMenuItem);
+        debugMenu.add(vmPoolMenuItem);
+        debugMenu.add(classDataSharingMenuItem);
         return debugMenu;
     }
 
@@ -266,6 +340,9 @@ public class DebugEditor extends JavaEditor implements ActionListener {
             Logger.getLogger(DebugEditor.class.getName()).log(Level.INFO, "Invoked 'Debug' menu item");
             //dmode.handleDebug(sketch, this);
             dbg.startDebug();
+        } else if (source == attachMenuItem) {
+            Logger.getLogger(DebugEditor.class.getName()).log(Level.INFO, "Invoked 'Attach to Running Sketch' menu item");
+            attachToRunningSketch();
         } else if (source == stopMenuItem) {
             Logger.getLogger(DebugEditor.class.getName()).log(Level.INFO, "Invoked 'Stop' menu item");
             //dmode.handleDebug(sketch, this);
@@ -298,6 +375,13 @@ public class DebugEditor extends JavaEditor implements ActionListener {
         } else if (source == printThreads) {
             Logger.getLogger(DebugEditor.class.getName()).log(Level.INFO, "Invoked 'Print Threads' menu item");
             dbg.printThreads();
+        } else if (source == eventStallBenchmarkMenuItem) {
+            Logger.getLogger(DebugEditor.class.getName()).log(Level.INFO, "Invoked 'Measure Event Handling Stall' menu item");
+            new Thread(new EventStallBenchmark(), "Debug Mode Event Stall Benchmark").start(); // blocks while measuring
+        } else if (source == startupBenchmarkMenuItem) {
+            Logger.getLogger(DebugEditor.class.getName()).log(Level.INFO, "Invoked 'Measure Startup' menu item");
+            prepareRun(); // store the text in the sketch
+            new Thread(new StartupBenchmark(this), "Debug Mode Startup Benchmark").start(); // blocks while measuring
         } else if (source == toggleBreakpointMenuItem) {
             Logger.getLogger(DebugEditor.class.getName()).log(Level.INFO, "Invoked 'Toggle Breakpoint' menu item");
             dbg.toggleBreakpoint();
@@ -307,6 +391,15 @@ public class DebugEditor extends JavaEditor implements ActionListener {
         } else if (source == toggleVariableInspectorMenuItem) {
             Logger.getLogger(DebugEditor.class.getName()).log(Level.INFO, "Invoked 'Toggle Variable Inspector' menu item");
             toggleVariableInspector();
+        } else if (source == backgroundBuildMenuItem) {
+            Logger.getLogger(DebugEditor.class.getName()).log(Level.INFO, "Invoked 'Build in Background' menu item");
+            buildScheduler.setEnabled(backgroundBuildMenuItem.isSelected());
+        } else if (source == vmPoolMenuItem) {
+            Logger.getLogger(DebugEditor.class.getName()).log(Level.INFO, "Invoked 'Keep Debugger VM Ready' menu item");
+            dmode.getVMPool().setEnabled(vmPoolMenuItem.isSelected());
+        } else if (source == classDataSharingMenuItem) {
+            Logger.getLogger(DebugEditor.class.getName()).log(Level.INFO, "Invoked 'Share Core Classes' menu item");
+            dmode.getCDSArchive().setEnabled(classDataSharingMenuItem.isSelected());
         }
     }
 
@@ -432,6 +525,9 @@ public class DebugEditor extends JavaEditor implements ActionListener {
 
         boolean saved = super.handleSave(immediately);
         if (saved) {
+            if (dbg.isPaused() && !modified.isEmpty()) {
+                dbg.replaceCode(); // apply the changes to the running sketch
+            }
             if (immediately) {
                 for (String tabFilename : modified) {
                     addBreakpointComments(tabFilename);
@@ -562,6 +658,15 @@ public class DebugEditor extends JavaEditor implements ActionListener {
         }
     }
 
+    /**
+     * Access the background build scheduler.
+     *
+     * @return the build scheduler
+     */
+    public BuildScheduler buildScheduler() {
+        return buildScheduler;
+    }
+
     /**
      * Access the debugger.
      *
@@ -724,7 +829,7 @@ public class DebugEditor extends JavaEditor implements ActionListener {
         //System.out.println("line id: " + line.fileName() + " " + line.lineIdx());
         LineHighlight foundLine = null;
         for (LineHighlight hl : breakpointedLines) {
-            if (hl.lineID.equals(line)) {
+            if (hl.lineID().equals(line)) {
                 foundLine = hl;
                 break;
             }
@@ -825,6 +930,9 @@ public class DebugEditor extends JavaEditor implements ActionListener {
         if (dbg() != null && dbg().isStarted()) {
             dbg().startTrackingLineChanges();
         }
+        if (buildScheduler != null) { // null when setCode is called the first time (in constructor)
+            buildScheduler.watch(currentDocument());
+        }
     }
 
     /**
@@ -38,6 +38,10 @@ public class DebugMode extends JavaMode {
 
     public static final boolean VERBOSE_LOGGING = true;
     public static final int LOG_SIZE = 524288; // max log file size (in bytes)
+    protected BuildCache buildCache = new BuildCache(); // last debug build of each sketch
+    protected CompilerService compilerService = new CompilerService(this); // compiler for debug builds, kept warm between builds
+    protected VMPool vmPool = new VMPool(); // debuggee vm launched ahead of time
+    protected CDSArchive cdsArchive; // class data sharing archives for debuggees
 
     // important inherited fields:
     // protected Base base;
@@ -84,6 +88,9 @@ public class DebugMode extends JavaMode {
             Logger.getLogger(DebugMode.class.getName()).log(Level.SEVERE, null, ex);
         }
 
+        // class data sharing archives of the debuggee's jars, next to the logs
+        cdsArchive = new CDSArchive(getContentFile("cds"));
+
         // output version from manifest file
         Package p = DebugMode.class.getPackage();
         String titleAndVersion = p.getImplementationTitle() + " (v" + p.getImplementationVersion() + ")";
@@ -91,6 +98,45 @@ public class DebugMode extends JavaMode {
         Logger.getLogger(DebugMode.class.getName()).log(Level.INFO, titleAndVersion);
     }
 
+    /**
+     * Get the compiler used for debug builds. Shared by all editors of this
+     * mode.
+     *
+     * @return the compiler service
+     */
+    public CompilerService getCompilerService() {
+        return compilerService;
+    }
+
+    /**
+     * Get the cache of debug builds. Shared by all editors of this mode.
+     *
+     * @return the build cache
+     */
+    public BuildCache getBuildCache() {
+        return buildCache;
+    }
+
+    /**
+     * Get the pool of debuggee VMs launched ahead of time. Shared by all
+     * editors of this mode.
+     *
+     * @return the vm pool
+     */
+    public VMPool getVMPool() {
+        return vmPool;
+    }
+
+    /**
+     * Get the class data sharing archives used to launch debuggees. Shared by
+     * all editors of this mode.
+     *
+     * @return the archives
+     */
+    public CDSArchive getCDSArchive() {
+        return cdsArchive;
+    }
+
     /**
      * Return the pretty/printable/menu name for this mode. This is separate
      * from the single word name of the folder that contains this mode. It could
@@ -107,6 +153,7 @@ public class DebugMode extends JavaMode {
      */
     @Override
     public processing.app.Editor createEditor(Base base, String path, EditorState state) {
+        compilerService.warmUp(); // in the background, so the first debug build is fast
         return new DebugEditor(base, path, state, this);
     }
 
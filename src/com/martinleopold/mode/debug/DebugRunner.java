@@ -17,15 +17,29 @@
  */
 package com.martinleopold.mode.debug;
 
+import com.sun.jdi.Bootstrap;
+import com.sun.jdi.VMDisconnectedException;
 import com.sun.jdi.VirtualMachine;
+import com.sun.jdi.connect.AttachingConnector;
+import com.sun.jdi.connect.Connector;
+import com.sun.jdi.connect.IllegalConnectorArgumentsException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import processing.app.RunnerListener;
 import processing.app.SketchException;
-import processing.app.exec.StreamRedirectThread;
+import processing.core.PApplet;
 import processing.mode.java.JavaBuild;
 import processing.mode.java.runner.MessageSiphon;
 
 /**
- * Runs a {@link JavaBuild}. Launches the build in a new debuggee VM.
+ * Runs a {@link JavaBuild}. Launches the build in a new debuggee VM, adopts
+ * one launched ahead of time by the {@link VMPool}, or attaches to a sketch
+ * that's already running.
  *
  * @author Martin Leopold <m@martinleopold.com>
  */
@@ -33,6 +47,10 @@ public class DebugRunner extends processing.mode.java.runner.Runner {
 
     // important inherited fields
     // protected VirtualMachine vm;
+    protected boolean classDataSharing = false; // true if the vm parameters include a class data sharing archive
+    protected boolean attached = false; // true if attached to a VM started elsewhere, which isn't killed on close
+    protected ConsolePipeline output; // forwards the VM's output, null if not redirected
+
     public DebugRunner(JavaBuild build, RunnerListener listener) throws SketchException {
         super(build, listener);
     }
@@ -66,16 +84,159 @@ public class DebugRunner extends processing.mode.java.runner.Runner {
     }
 
     /**
-     * Redirect a VMs output and error streams to System.out and System.err
+     * Get the debuggee VM parameters. Adds the class data sharing archive of
+     * the classpath, if there is one (see {@link CDSArchive}).
+     *
+     * @return the VM parameters
+     */
+    @Override
+    protected String[] getMachineParams() {
+        String[] params = super.getMachineParams();
+        if (build.getMode() instanceof DebugMode) {
+            params = ((DebugMode) build.getMode()).getCDSArchive().machineParams(params);
+            classDataSharing = CDSArchive.usesArchive(params);
+        }
+        return params;
+    }
+
+    /**
+     * Check whether the VM was launched with a class data sharing archive.
+     *
+     * @return true if launched with an archive
+     */
+    public boolean isClassDataSharing() {
+        return classDataSharing;
+    }
+
+    /**
+     * Take over the VM of another runner, launched for the same pool key
+     * (see {@link VMPool}). Redirects its output.
+     *
+     * @param other the runner that launched the VM
+     */
+    public void adopt(DebugRunner other) {
+        vm = other.vm;
+        process = other.process;
+        classDataSharing = other.classDataSharing;
+        redirectStreams(vm);
+    }
+
+    /**
+     * Get the key a pooled VM for this runner's build is matched by (see
+     * {@link VMPool}): the VM parameters (including classpath) and sketch
+     * parameters. Leaves out what doesn't change the code the VM runs, i.e.
+     * the class data sharing archive, which appears once it's generated, and
+     * the window location, which changes whenever the editor is moved.
+     *
+     * @return the key
+     */
+    public String poolKey() {
+        List<String> params = new ArrayList();
+        params.addAll(Arrays.asList(super.getMachineParams())); // without the archive
+        for (String param : getSketchParams(false)) {
+            if (!param.startsWith(PApplet.ARGS_EDITOR_LOCATION) && !param.startsWith(PApplet.ARGS_LOCATION)) {
+                params.add(param);
+            }
+        }
+        return params.toString();
+    }
+
+    /**
+     * Attach to a VM that's already running with a JDWP socket listener.
+     * Blocks until connected. The VM's output isn't redirected, it goes
+     * wherever it went before.
+     *
+     * @param host the host the VM runs on
+     * @param port the JDWP port
+     * @return debuggee VM or null on failure
+     */
+    public VirtualMachine attach(String host, int port) {
+        AttachingConnector connector = null;
+        for (AttachingConnector c : Bootstrap.virtualMachineManager().attachingConnectors()) {
+            if ("com.sun.jdi.SocketAttach".equals(c.name())) {
+                connector = c;
+            }
+        }
+        if (connector == null) {
+            Logger.getLogger(DebugRunner.class.getName()).log(Level.SEVERE, "no socket attaching connector");
+            return null;
+        }
+        Map<String, Connector.Argument> args = connector.defaultArguments();
+        args.get("hostname").setValue(host);
+        args.get("port").setValue(String.valueOf(port));
+        try {
+            vm = connector.attach(args);
+            attached = true;
+        } catch (IOException ex) {
+            Logger.getLogger(DebugRunner.class.getName()).log(Level.WARNING, "attach failed", ex);
+            vm = null;
+        } catch (IllegalConnectorArgumentsException ex) {
+            Logger.getLogger(DebugRunner.class.getName()).log(Level.WARNING, "attach failed", ex);
+            vm = null;
+        }
+        return vm;
+    }
+
+    /**
+     * Check whether this runner attached to a VM started elsewhere.
+     *
+     * @return true if attached
+     */
+    public boolean isAttached() {
+        return attached;
+    }
+
+    /**
+     * Close the debuggee VM. A VM that was attached to is only disconnected,
+     * which removes breakpoints and lets it continue running.
+     */
+    @Override
+    public void close() {
+        if (attached) {
+            if (vm != null) {
+                try {
+                    vm.dispose();
+                } catch (VMDisconnectedException ex) {
+                    // already gone
+                }
+                vm = null;
+            }
+        } else {
+            super.close();
+        }
+    }
+
+    /**
+     * Redirect a VMs output and error streams to System.out and System.err.
+     * Output goes through a {@link ConsolePipeline}, errors through a
+     * {@link MessageSiphon} (which picks up exceptions). Buffered output is
+     * written before each error line, see {@link #message(String)}.
      *
      * @param vm the VM
      */
     protected void redirectStreams(VirtualMachine vm) {
         MessageSiphon ms = new MessageSiphon(process.getErrorStream(), this);
         errThread = ms.getThread();
-        outThread = new StreamRedirectThread("VM output reader", process.getInputStream(), System.out);
+        output = new ConsolePipeline(process.getInputStream(), System.out, "VM output reader"); // doesn't let the debuggee block on the console
+        outThread = output.getThread();
         errThread.start();
-        outThread.start();
+        output.start();
+    }
+
+    /**
+     * Called by the {@link MessageSiphon} for each line of error output.
+     * Writes the output buffered so far first, so output and errors (e.g.
+     * a println() right before an exception) show up in order.
+     *
+     * @param s the line
+     */
+    @Override
+    public void message(String s) {
+        ConsolePipeline o = output;
+        if (o != null) {
+            o.flush();
+        }
+        super.message(s);
     }
 
     /**
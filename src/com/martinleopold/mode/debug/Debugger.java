@@ -21,46 +21,73 @@ import com.sun.jdi.*;
 import com.sun.jdi.event.*;
 import com.sun.jdi.request.BreakpointRequest;
 import com.sun.jdi.request.ClassPrepareRequest;
+import com.sun.jdi.request.EventRequest;
 import com.sun.jdi.request.EventRequestManager;
 import com.sun.jdi.request.StepRequest;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JTree; // needed for javadocs
 import javax.swing.tree.DefaultMutableTreeNode;
 import processing.app.Sketch;
 import processing.app.SketchCode;
+import processing.app.SketchException;
 
 /**
  * Main controller class for debugging mode. Mainly works with DebugEditor as
- * the corresponding "view". Uses DebugRunner to launch a VM.
+ * the corresponding "view". Uses DebugRunner to launch a VM. Session control
+ * (starting, stopping, stepping, breakpoints) happens on the event dispatch
+ * thread only, VM events that end or continue the session hand that work to
+ * it. So nothing here is locked against the VM event thread, which only
+ * updates the session state ({@link DebuggerState}).
  *
  * @author Martin Leopold <m@martinleopold.com>
  */
 public class Debugger implements VMEventListener {
 
+    public static final int ARRAY_PAGE_SIZE = 1000; // max. number of array elements fetched and shown at once
+
     protected DebugEditor editor; // editor window, acting as main view
-    protected DebugRunner runtime; // the runtime, contains debuggee VM
-    protected boolean started = false; // debuggee vm has started, VMStartEvent received, main class loaded
-    protected boolean paused = false; // currently paused at breakpoint or step
-    protected ThreadReference currentThread; // thread the last breakpoint or step occured in
-    protected String mainClassName; // name of the main class that's currently being debugged
-    protected ReferenceType mainClass; // the debuggee's main class
-    protected Set<ReferenceType> classes = new HashSet(); // holds all loaded classes in the debuggee VM
-    protected List<ClassLoadListener> classLoadListeners = new ArrayList(); // listeners for class load events
+    protected volatile DebugRunner runtime; // the runtime, contains debuggee VM
+    protected volatile boolean launching = false; // true while building and launching a session, before runtime is set
+    protected final AtomicReference<DebuggerState> state = new AtomicReference(DebuggerState.STOPPED); // started, paused, current thread and pending step. replaced as a whole, never locked
+    protected final ExecutorService fetchExecutor = Executors.newSingleThreadExecutor(new FetchThreadFactory()); // runs variable inspector snapshot jobs
+    protected final AtomicLong snapshotGeneration = new AtomicLong(); // incremented on every suspension and resume. used to detect stale snapshot jobs
+    protected volatile Future<?> snapshotJob; // the most recently scheduled snapshot job
+    protected ValueFetcher fetcher = new ValueFetcher(); // batched access to values in the debuggee
+    protected ConcurrentMap<ReferenceType, TypeInfo> typeInfos = new ConcurrentHashMap(); // cached field metadata per class. cleared on disconnect
+    protected ConcurrentMap<Location, LocationLine> locationLines = new ConcurrentHashMap(); // cached sketch lines per location (method and code index). cleared on disconnect
+    protected volatile String mainClassName; // name of the main class that's currently being debugged
+    protected volatile ReferenceType mainClass; // the debuggee's main class
+    protected static final String SKETCH_TABS_KEY = "*.pde"; // listener key for classes compiled from .pde tabs, i.e. the main class and its nested classes
+    protected ClassRegistry classes = new ClassRegistry(); // holds all loaded classes in the debuggee VM
+    protected List<ClassLoadListener> classLoadListeners = new CopyOnWriteArrayList(); // listeners for all class load events
+    protected ConcurrentMap<String, List<ClassLoadListener>> tabClassLoadListeners = new ConcurrentHashMap(); // listeners for classes of a tab, by listener key (see classKey)
+    protected volatile ClassPrepareRequest mainClassRequest; // class prepare request for the main class, deleted once loaded
+    protected Map<String, List<ClassPrepareRequest>> classPrepareRequests = new ConcurrentHashMap(); // class prepare requests for tabs with unbound breakpoints, by listener key
     protected String srcPath; // path to the src folder of the current build
-    protected List<LineBreakpoint> breakpoints = new ArrayList(); // list of current breakpoints
-    protected StepRequest requestedStep; // the step request we are currently in, or null if not in a step
-    protected Map<LineID, LineID> runtimeLineChanges = new HashMap(); // maps line number changes at runtime (orig -> changed)
-    protected Set<String> runtimeTabsTracked = new HashSet(); // contains tab filenames which already have been tracked for runtime changes
+    protected volatile SketchIndex sketchIndex; // tabs and line offsets of the current build
+    protected List<LineBreakpoint> breakpoints = new CopyOnWriteArrayList(); // list of current breakpoints. also read from the vm event thread
+    protected BreakpointIndex breakpointIndex = new BreakpointIndex(); // current breakpoints by file and line, for lookups
+    protected Map<String, LineTracker> lineTrackers = new ConcurrentHashMap(); // trackers for line number changes at runtime, by tab file name
+    protected volatile long debugStartTime; // System.nanoTime() when debugging was started. 0 after the first breakpoint was hit
+    protected volatile long launchStartTime; // System.nanoTime() when the debuggee vm was launched
+    protected volatile ClassFiles runningClasses; // the classes the debuggee runs, as launched or last replaced
+    protected volatile DebugBuild lastBuild; // the build of the running session, a VM for it is prelaunched when the session ends
+    protected volatile boolean replacingCode = false; // true while the code of the paused session is being replaced on a worker thread
 
     /**
      * Construct a Debugger object.
@@ -71,14 +98,28 @@ public class Debugger implements VMEventListener {
         this.editor = editor;
     }
 
+    /**
+     * Creates the daemon thread used for fetching variable inspector data.
+     */
+    protected static class FetchThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Variable Inspector Fetch Thread");
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
     /**
      * Access the VM.
      *
      * @return the virtual machine object or null if not available.
      */
     public VirtualMachine vm() {
-        if (runtime != null) {
-            return runtime.vm();
+        DebugRunner r = runtime; // read once, stopDebug may clear it meanwhile
+        if (r != null) {
+            return r.vm();
         } else {
             return null;
         }
@@ -93,6 +134,61 @@ public class Debugger implements VMEventListener {
         return editor;
     }
 
+    /**
+     * Access the current session state. Never blocks, so it is safe to call
+     * from the EDT while the VM event thread is busy.
+     *
+     * @return the current (immutable) state
+     */
+    public DebuggerState state() {
+        return state.get();
+    }
+
+    /**
+     * Mark the session as started or not started.
+     *
+     * @param started true if the debuggee has started
+     */
+    protected void setStarted(boolean started) {
+        DebuggerState s;
+        do {
+            s = state.get();
+        } while (!state.compareAndSet(s, s.withStarted(started)));
+    }
+
+    /**
+     * Mark the session as running, with a step pending or not.
+     *
+     * @param step the pending step request, or null if not stepping
+     */
+    protected void setResumed(StepRequest step) {
+        DebuggerState s;
+        do {
+            s = state.get();
+        } while (!state.compareAndSet(s, s.resumed(step)));
+    }
+
+    /**
+     * Mark the session as paused in a thread, with no step pending.
+     *
+     * @param thread the suspended thread
+     */
+    protected void setSuspendedAt(ThreadReference thread) {
+        DebuggerState s;
+        do {
+            s = state.get();
+        } while (!state.compareAndSet(s, s.suspendedAt(thread)));
+    }
+
+    /**
+     * Get the thread the last breakpoint or step occurred in.
+     *
+     * @return the thread, or null if none
+     */
+    protected ThreadReference currentThread() {
+        return state.get().currentThread();
+    }
+
     /**
      * Retrieve the main class of the debuggee VM.
      *
@@ -122,12 +218,29 @@ public class Debugger implements VMEventListener {
         if (name.equals(mainClassName)) {
             return mainClass;
         }
-        for (ReferenceType rt : classes) {
-            if (rt.name().equals(name)) {
-                return rt;
+        return classes.get(name);
+    }
+
+    /**
+     * Get a loaded class and all of its loaded nested classes.
+     *
+     * @param name the class name
+     * @return the loaded classes, outer class first. Empty if not loaded
+     */
+    public List<ReferenceType> getClassWithNested(String name) {
+        List<ReferenceType> types = classes.getWithNested(name);
+        VirtualMachine vm = vm();
+        if (types.isEmpty() && name != null && vm != null) {
+            // class prepare events are only requested for tabs with breakpoints,
+            // so the class might have been loaded without us noticing
+            for (ReferenceType rt : vm.allClasses()) {
+                if (rt.isPrepared() && ClassRegistry.topLevelName(rt.name()).equals(name)) {
+                    classes.add(rt);
+                }
             }
+            types = classes.getWithNested(name);
         }
-        return null;
+        return types;
     }
 
     /**
@@ -150,18 +263,135 @@ public class Debugger implements VMEventListener {
         classLoadListeners.remove(listener);
     }
 
+    /**
+     * Add a class load listener for the classes of a tab. Will be notified
+     * only when a class compiled from that tab is loaded in the debuggee VM,
+     * including nested classes.
+     *
+     * @param fileName the file name of the tab
+     * @param listener the {@link ClassLoadListener}
+     */
+    public void addClassLoadListener(String fileName, ClassLoadListener listener) {
+        String key = classKey(fileName);
+        requestClassPrepare(key); // if debugging, make sure class loads of this tab are reported
+        List<ClassLoadListener> listeners = tabClassLoadListeners.get(key);
+        if (listeners == null) {
+            listeners = new CopyOnWriteArrayList();
+            List<ClassLoadListener> existing = tabClassLoadListeners.putIfAbsent(key, listeners);
+            if (existing != null) {
+                listeners = existing;
+            }
+        }
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Remove a class load listener for the classes of a tab.
+     *
+     * @param fileName the file name of the tab
+     * @param listener {@link ClassLoadListener}
+     */
+    public void removeClassLoadListener(String fileName, ClassLoadListener listener) {
+        List<ClassLoadListener> listeners = tabClassLoadListeners.get(classKey(fileName));
+        if (listeners != null) {
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Request class prepare events for the classes of a tab, if not already
+     * requested. Uses a source name filter if the VM supports it, otherwise
+     * class name filters for the tab's class and its nested classes. Only
+     * suspends the thread loading the class. Does nothing if not debugging.
+     *
+     * @param key the listener key of the tab (see {@link #classKey(String)})
+     */
+    protected void requestClassPrepare(String key) {
+        VirtualMachine vm = vm();
+        if (vm == null || mainClassName == null || classPrepareRequests.containsKey(key)) {
+            return;
+        }
+        String className = SKETCH_TABS_KEY.equals(key) ? mainClassName : key.substring(0, key.lastIndexOf(".java"));
+        EventRequestManager mgr = vm.eventRequestManager();
+        List<ClassPrepareRequest> requests = new ArrayList();
+        if (vm.canUseSourceNameFilters()) {
+            ClassPrepareRequest cpr = mgr.createClassPrepareRequest();
+            cpr.addSourceNameFilter(className + ".java"); // includes nested classes
+            requests.add(cpr);
+        } else {
+            ClassPrepareRequest cpr = mgr.createClassPrepareRequest();
+            cpr.addClassFilter(className);
+            requests.add(cpr);
+            cpr = mgr.createClassPrepareRequest();
+            cpr.addClassFilter(className + "$*"); // any nested classes
+            requests.add(cpr);
+        }
+        for (ClassPrepareRequest cpr : requests) {
+            cpr.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+            cpr.enable();
+        }
+        classPrepareRequests.put(key, requests);
+        Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "requesting event on class load: {0}", className);
+    }
+
+    /**
+     * Delete the class prepare requests of a tab if all of its breakpoints
+     * are bound to a class.
+     *
+     * @param key the listener key of the tab (see {@link #classKey(String)})
+     */
+    protected void releaseClassPrepare(String key) {
+        for (LineBreakpoint bp : breakpoints) {
+            if (!bp.isBound() && key.equals(classKey(bp.lineID().fileName()))) {
+                return; // still waiting for a class
+            }
+        }
+        List<ClassPrepareRequest> requests = classPrepareRequests.remove(key);
+        VirtualMachine vm = vm();
+        if (requests != null && vm != null) {
+            vm.eventRequestManager().deleteEventRequests(requests);
+            Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "all breakpoints bound, deleted class load request for {0}", key);
+        }
+    }
+
+    /**
+     * Get the listener key for a tab. All .pde tabs are compiled into the
+     * main class and share a key, java tabs have their own.
+     *
+     * @param fileName the file name of the tab
+     * @return the listener key
+     */
+    protected String classKey(String fileName) {
+        return fileName.endsWith(".pde") ? SKETCH_TABS_KEY : fileName;
+    }
+
+    /**
+     * Get the listener key of the tab a class was compiled from.
+     *
+     * @param rt the class
+     * @return the listener key
+     */
+    protected String classKey(ReferenceType rt) {
+        String topLevel = ClassRegistry.topLevelName(rt.name());
+        return topLevel.equals(mainClassName) ? SKETCH_TABS_KEY : topLevel + ".java";
+    }
+
     /**
      * Start a debugging session. Builds the sketch and launches a VM to run it.
      * VM starts suspended. Should produce a VMStartEvent.
      */
-    public synchronized void startDebug() {
+    public void startDebug() {
         //stopDebug(); // stop any running sessions
         if (isStarted()) {
             return; // do nothing
         }
+        launching = true;
 
         // we are busy now
         editor.statusBusy();
+        debugStartTime = System.nanoTime();
 
         // clear console
         editor.clearConsole();
@@ -180,7 +410,17 @@ public class Debugger implements VMEventListener {
 
             Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "building sketch: {0}", sketch.getName());
             //LineMapping.addLineNumbers(sketch); // annotate
-            mainClassName = build.build(false);
+            BuildScheduler scheduler = editor.buildScheduler();
+            scheduler.cancel(); // a running background build is of outdated text, stop it instead of waiting
+            synchronized (scheduler.buildLock()) {
+                mainClassName = build.build(false);
+            }
+            Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "build took {0} ms{1}", new Object[]{(System.nanoTime() - debugStartTime) / 1000000, build.isReused() ? " (reused)" : ""});
+            if (build.getSketchIndex() != null) {
+                sketchIndex = build.getSketchIndex();
+                locationLines.clear(); // resolved against the previous build
+            }
+            runningClasses = build.getClassFiles();
             //LineMapping.removeLineNumbers(sketch); // annotate
             Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "class: {0}", mainClassName);
 
@@ -195,15 +435,23 @@ public class Debugger implements VMEventListener {
                 //lineMap = LineMapping.generateMapping(srcPath + File.separator + mainClassName + ".java");
 
                 Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "launching debuggee runtime");
+                launchStartTime = System.nanoTime();
                 runtime = new DebugRunner(build, editor);
-                VirtualMachine vm = runtime.launch(); // non-blocking
+                boolean warm = editor.mode().getVMPool().adopt(runtime); // use a VM launched ahead of time, if any
+                VirtualMachine vm = warm ? runtime.vm() : runtime.launch(); // non-blocking
                 if (vm == null) {
                     Logger.getLogger(Debugger.class.getName()).log(Level.SEVERE, "error 37: launch failed");
                 }
+                Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "{0} vm start took {1} ms (class data sharing: {2})", new Object[]{
+                            warm ? "warm" : "cold", (System.nanoTime() - launchStartTime) / 1000000, runtime.isClassDataSharing()});
+                lastBuild = build;
 
                 // start receiving vm events
                 VMEventReader eventThread = new VMEventReader(vm.eventQueue(), this);
                 eventThread.start();
+                if (warm) {
+                    vmStarted(vm); // an adopted vm doesn't send a VMStartEvent
+                }
 
                 //return runtime;
 
@@ -219,26 +467,148 @@ public class Debugger implements VMEventListener {
             }
         } catch (Exception e) {
             editor.statusError(e);
+        } finally {
+            launching = false;
         }
     }
 
+    /**
+     * Attach to a sketch that is already running with a JDWP socket listener,
+     * e.g. started with
+     * -agentlib:jdwp=transport=dt_socket,server=y,suspend=n,address=8000. The
+     * sketch runs at full speed until then. Builds the sketch (without
+     * launching it) for the line mapping, so the running sketch needs to be
+     * built from the same code. Breakpoints are bound to the classes already
+     * loaded, others when their classes load. Stopping detaches and leaves
+     * the sketch running.
+     *
+     * @param host the host the sketch runs on
+     * @param port the JDWP port
+     */
+    public void attachDebug(String host, int port) {
+        if (isStarted()) {
+            return; // do nothing
+        }
+        launching = true;
+        editor.statusBusy();
+        debugStartTime = System.nanoTime();
+        editor.variableInspector().reset();
+        editor.prepareRun();
+        editor.toolbar().activate(DebugToolbar.DEBUG);
+
+        try {
+            Sketch sketch = editor.getSketch();
+            DebugBuild build = new DebugBuild(sketch);
+            BuildScheduler scheduler = editor.buildScheduler();
+            scheduler.cancel();
+            synchronized (scheduler.buildLock()) {
+                mainClassName = build.build(false);
+            }
+            if (mainClassName == null) {
+                stopDebug();
+                return;
+            }
+            if (build.getSketchIndex() != null) {
+                sketchIndex = build.getSketchIndex();
+                locationLines.clear();
+            }
+            runningClasses = build.getClassFiles();
+            srcPath = build.getSrcFolder().getPath();
+
+            Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "attaching to {0}:{1}", new Object[]{host, String.valueOf(port)});
+            launchStartTime = System.nanoTime();
+            runtime = new DebugRunner(build, editor);
+            VirtualMachine vm = runtime.attach(host, port);
+            if (vm == null) {
+                stopDebug();
+                editor.statusError("Couldn't attach to " + host + ":" + port + ". Is the sketch running with a JDWP listener?");
+                return;
+            }
+            Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "attach took {0} ms", (System.nanoTime() - launchStartTime) / 1000000);
+
+            // bind breakpoints to the loaded classes. suspend meanwhile, so the sketch doesn't pass them
+            vm.suspend();
+            try {
+                List<ThreadReference> threads = vm.allThreads();
+                ThreadReference t = threads.isEmpty() ? null : threads.get(0);
+                for (ThreadReference thread : threads) {
+                    if ("Animation Thread".equals(thread.name())) {
+                        t = thread; // runs draw()
+                    }
+                }
+                state.set(DebuggerState.STOPPED.withStarted(true).suspendedAt(t)); // started, paused while binding breakpoints
+                for (LineBreakpoint bp : breakpoints) {
+                    requestClassPrepare(classKey(bp.lineID().fileName())); // for classes not loaded yet
+                }
+                int loaded = 0;
+                for (ReferenceType rt : vm.allClasses()) {
+                    if (isSketchClass(rt) && rt.isPrepared()) {
+                        if (rt.name().equals(mainClassName)) {
+                            mainClass = rt;
+                        }
+                        registerClass(rt, t);
+                        loaded++;
+                    }
+                }
+                Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "found {0} loaded sketch classes", loaded);
+                setResumed(null);
+            } finally {
+                vm.resume();
+            }
+
+            // start receiving vm events
+            VMEventReader eventThread = new VMEventReader(vm.eventQueue(), this);
+            eventThread.start();
+
+            startTrackingLineChanges();
+            editor.statusNotice("Attached to " + host + ":" + port + ".");
+        } catch (Exception e) {
+            editor.statusError(e);
+        } finally {
+            launching = false;
+        }
+    }
+
+    /**
+     * Check whether a class was compiled from the sketch, i.e. from one of
+     * its tabs.
+     *
+     * @param rt the class
+     * @return true if it's a sketch class
+     */
+    protected boolean isSketchClass(ReferenceType rt) {
+        String key = classKey(rt);
+        return SKETCH_TABS_KEY.equals(key) || editor.getTab(key) != null;
+    }
+
     /**
      * End debugging session. Stops and disconnects VM. Should produce
      * VMDisconnectEvent.
      */
-    public synchronized void stopDebug() {
+    public void stopDebug() {
+        cancelVariableInspectorUpdate();
         editor.variableInspector().lock();
         if (runtime != null) {
             Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "closing runtime");
             runtime.close();
             runtime = null;
+            mainClassRequest = null;
+            classPrepareRequests.clear();
             //build = null;
             classes.clear();
+            typeInfos.clear();
+            locationLines.clear();
             // need to clear highlight here because, VMDisconnectedEvent seems to be unreliable. TODO: likely synchronization problem
             editor.clearCurrentLine();
         }
         stopTrackingLineChanges();
-        started = false;
+        debugStartTime = 0;
+        runningClasses = null;
+        if (lastBuild != null) {
+            editor.mode().getVMPool().prelaunch(lastBuild, mainClassName, editor); // for the next session
+            lastBuild = null;
+        }
+        state.set(DebuggerState.STOPPED);
         editor.toolbar().deactivate(DebugToolbar.DEBUG);
         editor.toolbar().deactivate(DebugToolbar.CONTINUE);
         editor.toolbar().deactivate(DebugToolbar.STEP);
@@ -248,7 +618,10 @@ public class Debugger implements VMEventListener {
     /**
      * Resume paused debugging session. Resumes VM.
      */
-    public synchronized void continueDebug() {
+    public void continueDebug() {
+        if (replacingCode) {
+            return; // continue once the new code is in place
+        }
         editor.toolbar().activate(DebugToolbar.CONTINUE);
         editor.variableInspector().lock();
         //editor.clearSelection();
@@ -257,12 +630,239 @@ public class Debugger implements VMEventListener {
         if (!isStarted()) {
             startDebug();
         } else if (isPaused()) {
+            cancelVariableInspectorUpdate();
+            setResumed(null);
             runtime.vm().resume();
-            paused = false;
             editor.statusBusy();
         }
     }
 
+    /**
+     * Replace the code of the running sketch with the saved tabs, without
+     * restarting. Only possible while paused. Recompiles the changed sources
+     * and redefines the loaded classes that changed. Frames running changed
+     * methods are popped, so the changed methods are re-entered from the
+     * start when continuing. Breakpoints are re-resolved against the new
+     * code. Changes the VM can't redefine (e.g. adding fields or methods) need
+     * a restart. Builds and redefines on a worker thread, returns right away.
+     *
+     * @return true if replacing the code was started
+     */
+    public boolean replaceCode() {
+        if (!isPaused() || replacingCode) {
+            return false;
+        }
+        final VirtualMachine vm = runtime.vm();
+        if (!vm.canRedefineClasses()) {
+            editor.statusError("The VM can't replace code, restart debugging to apply changes.");
+            return false;
+        }
+        replacingCode = true;
+        editor.statusNotice("Replacing code...");
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replaceCode(vm);
+                } catch (VMDisconnectedException ex) {
+                    Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "vm disconnected while replacing code");
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(Debugger.class.getName()).log(Level.SEVERE, "replacing code failed", ex);
+                    statusLater("Replacing code failed, restart debugging to apply changes.", true);
+                } finally {
+                    replacingCode = false;
+                }
+            }
+        }, "Debug Mode Code Replace");
+        t.setDaemon(true);
+        t.start();
+        return true;
+    }
+
+    /**
+     * Build the sketch and redefine the changed classes. Runs on a worker
+     * thread. The whole VM is suspended meanwhile, so no thread loads a class
+     * from the bin folder while it holds code the VM isn't running. If the
+     * build or the redefinition fails, the bin folder gets the running
+     * classes back.
+     *
+     * @param vm the VM of the session
+     */
+    protected void replaceCode(VirtualMachine vm) {
+        long start = System.nanoTime();
+        ClassFiles running = runningClasses;
+        DebugBuild build = new DebugBuild(editor.getSketch());
+        Map<ReferenceType, byte[]> redefinitions = new HashMap();
+        vm.suspend();
+        try {
+            synchronized (editor.buildScheduler().buildLock()) {
+                try {
+                    if (build.build(false) == null) {
+                        restoreClasses(build, running);
+                        statusLater("Can't replace code, the sketch doesn't compile.", true);
+                        return;
+                    }
+                } catch (final SketchException ex) {
+                    restoreClasses(build, running);
+                    javax.swing.SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            editor.statusError(ex);
+                        }
+                    });
+                    return;
+                }
+
+                // redefine the loaded classes that changed
+                ClassFiles classFiles = build.getClassFiles();
+                for (String name : classFiles.changedSince(running)) {
+                    for (ReferenceType rt : vm.classesByName(name)) {
+                        redefinitions.put(rt, classFiles.get(name));
+                    }
+                }
+                if (!redefinitions.isEmpty()) {
+                    try {
+                        vm.redefineClasses(redefinitions);
+                    } catch (UnsupportedOperationException ex) { // e.g. added a method or field
+                        Logger.getLogger(Debugger.class.getName()).log(Level.WARNING, "can't replace code", ex);
+                        restoreClasses(build, running);
+                        statusLater("Can't replace code (" + ex.getMessage() + "), restart debugging to apply changes.", true);
+                        return;
+                    } catch (LinkageError ex) { // verify error, class format error, ...
+                        Logger.getLogger(Debugger.class.getName()).log(Level.WARNING, "can't replace code", ex);
+                        restoreClasses(build, running);
+                        statusLater("Can't replace code (" + ex + "), restart debugging to apply changes.", true);
+                        return;
+                    }
+                }
+                File sessionBin = lastBuild != null ? lastBuild.getBinFolder() : null;
+                if (sessionBin != null && !sessionBin.equals(build.getBinFolder())) {
+                    writeClasses(classFiles, sessionBin); // built into new folders, classes loaded later come from the session's
+                }
+                runningClasses = classFiles;
+            }
+            for (ReferenceType rt : redefinitions.keySet()) {
+                invalidateTypeInfo(rt);
+            }
+
+            // line numbers of the new code are the current line numbers
+            sketchIndex = build.getSketchIndex();
+            locationLines.clear();
+            for (LineBreakpoint bp : breakpoints) {
+                bp.rebind();
+            }
+
+            // pop frames running obsolete (i.e. replaced) methods
+            ThreadReference t = currentThread();
+            popObsoleteFrames(t);
+            LineID line = null;
+            try {
+                if (t.frameCount() > 0) {
+                    line = locationToLineID(t.frame(0).location());
+                }
+            } catch (IncompatibleThreadStateException ex) {
+                Logger.getLogger(Debugger.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            updateVariableInspector(t);
+            final LineID currentLine = line;
+            javax.swing.SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    stopTrackingLineChanges();
+                    startTrackingLineChanges();
+                    if (currentLine != null) {
+                        editor.setCurrentLine(currentLine);
+                    } else {
+                        editor.clearCurrentLine();
+                    }
+                }
+            });
+            Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "replaced {0} classes in {1} ms", new Object[]{redefinitions.size(), (System.nanoTime() - start) / 1000000});
+            statusLater("Code replaced.", false);
+        } finally {
+            vm.resume(); // the paused thread stays suspended
+        }
+    }
+
+    /**
+     * Put the classes the VM runs back into the bin folder of a build, after
+     * replacing code failed. Drops the cached build, its sources are the ones
+     * that couldn't be applied.
+     *
+     * @param build the failed build
+     * @param running the classes the VM runs, or null if unknown
+     */
+    protected void restoreClasses(DebugBuild build, ClassFiles running) {
+        editor.mode().getBuildCache().remove(editor.getSketch());
+        if (running != null && build.getBinFolder() != null) {
+            writeClasses(running, build.getBinFolder());
+        }
+    }
+
+    /**
+     * Make a bin folder hold exactly a set of classes.
+     *
+     * @param classFiles the classes
+     * @param binFolder the bin folder
+     */
+    protected void writeClasses(ClassFiles classFiles, File binFolder) {
+        try {
+            classFiles.write(binFolder, ClassFiles.read(binFolder)); // writes what differs, deletes the rest
+        } catch (IOException ex) {
+            Logger.getLogger(Debugger.class.getName()).log(Level.SEVERE, "couldn't write classes to " + binFolder, ex);
+        }
+    }
+
+    /**
+     * Show a status message on the event dispatch thread.
+     *
+     * @param message the message
+     * @param error true for an error, false for a notice
+     */
+    protected void statusLater(final String message, final boolean error) {
+        javax.swing.SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (error) {
+                    editor.statusError(message);
+                } else {
+                    editor.statusNotice(message);
+                }
+            }
+        });
+    }
+
+    /**
+     * Pop the frames of a suspended thread down to (and including) the
+     * bottom-most frame running an obsolete method. The thread then re-invokes
+     * that method when resumed.
+     *
+     * @param t the suspended thread
+     */
+    protected void popObsoleteFrames(ThreadReference t) {
+        if (!t.virtualMachine().canPopFrames()) {
+            return;
+        }
+        try {
+            List<StackFrame> frames = t.frames();
+            for (int i = frames.size() - 1; i >= 0; i--) {
+                if (frames.get(i).location().method().isObsolete()) {
+                    if (i < frames.size() - 1) { // the bottom frame can't be popped
+                        t.popFrames(frames.get(i));
+                        Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "popped {0} frames", i + 1);
+                    }
+                    return;
+                }
+            }
+        } catch (IncompatibleThreadStateException ex) {
+            Logger.getLogger(Debugger.class.getName()).log(Level.WARNING, "can't pop frames", ex);
+        } catch (NativeMethodException ex) { // a native frame in between
+            Logger.getLogger(Debugger.class.getName()).log(Level.WARNING, "can't pop frames", ex);
+        } catch (InvalidStackFrameException ex) {
+            Logger.getLogger(Debugger.class.getName()).log(Level.WARNING, "can't pop frames", ex);
+        }
+    }
+
     /**
      * Step through source code lines.
      *
@@ -270,17 +870,21 @@ public class Debugger implements VMEventListener {
      * {@link StepRequest#STEP_INTO} or {@link StepRequest#STEP_OUT})
      */
     protected void step(int stepDepth) {
+        if (replacingCode) {
+            return; // step once the new code is in place
+        }
         if (!isStarted()) {
             startDebug();
         } else if (isPaused()) {
             editor.variableInspector().lock();
             editor.toolbar().activate(DebugToolbar.STEP);
 
-            // use global to mark that there is a step request pending
-            requestedStep = runtime.vm().eventRequestManager().createStepRequest(currentThread, StepRequest.STEP_LINE, stepDepth);
-            requestedStep.addCountFilter(1); // valid for one step only
-            requestedStep.enable();
-            paused = false;
+            // mark in the session state that there is a step request pending
+            StepRequest step = runtime.vm().eventRequestManager().createStepRequest(currentThread(), StepRequest.STEP_LINE, stepDepth);
+            step.addCountFilter(1); // valid for one step only
+            step.enable();
+            cancelVariableInspectorUpdate();
+            setResumed(step); // running, with the step pending
             runtime.vm().resume();
             editor.statusBusy();
         }
@@ -289,39 +893,39 @@ public class Debugger implements VMEventListener {
     /**
      * Step over current statement.
      */
-    public synchronized void stepOver() {
+    public void stepOver() {
         step(StepRequest.STEP_OVER);
     }
 
     /**
      * Step into current statement.
      */
-    public synchronized void stepInto() {
+    public void stepInto() {
         step(StepRequest.STEP_INTO);
     }
 
     /**
      * Step out of current function.
      */
-    public synchronized void stepOut() {
+    public void stepOut() {
         step(StepRequest.STEP_OUT);
     }
 
     /**
      * Print the current stack trace.
      */
-    public synchronized void printStackTrace() {
+    public void printStackTrace() {
         if (isStarted()) {
-            printStackTrace(currentThread);
+            printStackTrace(currentThread());
         }
     }
 
     /**
      * Print local variables. Outputs type, name and value of each variable.
      */
-    public synchronized void printLocals() {
+    public void printLocals() {
         if (isStarted()) {
-            printLocalVariables(currentThread);
+            printLocalVariables(currentThread());
         }
     }
 
@@ -329,25 +933,25 @@ public class Debugger implements VMEventListener {
      * Print fields of current {@code this}-object. Outputs type, name and value
      * of each field.
      */
-    public synchronized void printThis() {
+    public void printThis() {
         if (isStarted()) {
-            printThis(currentThread);
+            printThis(currentThread());
         }
     }
 
     /**
      * Print a source code snippet of the current location.
      */
-    public synchronized void printSource() {
+    public void printSource() {
         if (isStarted()) {
-            printSourceLocation(currentThread);
+            printSourceLocation(currentThread());
         }
     }
 
     /**
      * Set a breakpoint on the current line.
      */
-    public synchronized void setBreakpoint() {
+    public void setBreakpoint() {
         setBreakpoint(editor.getCurrentLineID());
     }
 
@@ -357,7 +961,7 @@ public class Debugger implements VMEventListener {
      * @param lineIdx the line index (0-based) of the current tab to set the
      * breakpoint on
      */
-    public synchronized void setBreakpoint(int lineIdx) {
+    public void setBreakpoint(int lineIdx) {
         setBreakpoint(editor.getLineIDInCurrentTab(lineIdx));
     }
 
@@ -366,7 +970,7 @@ public class Debugger implements VMEventListener {
      *
      * @param line the line id to set the breakpoint on
      */
-    public synchronized void setBreakpoint(LineID line) {
+    public void setBreakpoint(LineID line) {
         // do nothing if we are kinda busy
         if (isStarted() && !isPaused()) {
             return;
@@ -375,14 +979,16 @@ public class Debugger implements VMEventListener {
         if (hasBreakpoint(line)) {
             return;
         }
-        breakpoints.add(new LineBreakpoint(line, this));
+        LineBreakpoint bp = new LineBreakpoint(line, this);
+        breakpoints.add(bp);
+        breakpointIndex.add(bp);
         Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "set breakpoint on line {0}", line);
     }
 
     /**
      * Remove a breakpoint from the current line (if set).
      */
-    public synchronized void removeBreakpoint() {
+    public void removeBreakpoint() {
         removeBreakpoint(editor.getCurrentLineID().lineIdx());
     }
 
@@ -400,8 +1006,10 @@ public class Debugger implements VMEventListener {
 
         LineBreakpoint bp = breakpointOnLine(editor.getLineIDInCurrentTab(lineIdx));
         if (bp != null) {
+            breakpointIndex.remove(bp);
             bp.remove();
             breakpoints.remove(bp);
+            releaseClassPrepare(classKey(bp.lineID().fileName())); // might have been the last one waiting
             Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "removed breakpoint {0}", bp);
         }
     }
@@ -409,13 +1017,14 @@ public class Debugger implements VMEventListener {
     /**
      * Remove all breakpoints.
      */
-    public synchronized void clearBreakpoints() {
+    public void clearBreakpoints() {
         //TODO: handle busy-ness correctly
         if (isBusy()) {
             Logger.getLogger(Debugger.class.getName()).log(Level.WARNING, "busy");
             return;
         }
 
+        breakpointIndex.clear();
         for (LineBreakpoint bp : breakpoints) {
             bp.remove();
         }
@@ -427,21 +1036,18 @@ public class Debugger implements VMEventListener {
      *
      * @param tabFilename the tab's file name
      */
-    public synchronized void clearBreakpoints(String tabFilename) {
+    public void clearBreakpoints(String tabFilename) {
         //TODO: handle busy-ness correctly
         if (isBusy()) {
             Logger.getLogger(Debugger.class.getName()).log(Level.WARNING, "busy");
             return;
         }
 
-        Iterator<LineBreakpoint> i = breakpoints.iterator();
-        while (i.hasNext()) {
-            LineBreakpoint bp = i.next();
-            if (bp.lineID().fileName().equals(tabFilename)) {
-                bp.remove();
-                i.remove();
-            }
+        List<LineBreakpoint> removed = breakpointIndex.removeAll(tabFilename);
+        for (LineBreakpoint bp : removed) {
+            bp.remove();
         }
+        breakpoints.removeAll(removed); // copy on write list, remove all at once
     }
 
     /**
@@ -452,18 +1058,13 @@ public class Debugger implements VMEventListener {
      * line.
      */
     protected LineBreakpoint breakpointOnLine(LineID line) {
-        for (LineBreakpoint bp : breakpoints) {
-            if (bp.isOnLine(line)) {
-                return bp;
-            }
-        }
-        return null;
+        return breakpointIndex.get(line);
     }
 
     /**
      * Toggle a breakpoint on the current line.
      */
-    public synchronized void toggleBreakpoint() {
+    public void toggleBreakpoint() {
         toggleBreakpoint(editor.getCurrentLineID().lineIdx());
     }
 
@@ -472,7 +1073,7 @@ public class Debugger implements VMEventListener {
      *
      * @param lineIdx the line index (0-based) in the current tab
      */
-    public synchronized void toggleBreakpoint(int lineIdx) {
+    public void toggleBreakpoint(int lineIdx) {
         LineID line = editor.getLineIDInCurrentTab(lineIdx);
         if (!hasBreakpoint(line)) {
             setBreakpoint(line.lineIdx());
@@ -495,7 +1096,7 @@ public class Debugger implements VMEventListener {
     /**
      * Print a list of currently set breakpoints.
      */
-    public synchronized void listBreakpoints() {
+    public void listBreakpoints() {
         if (breakpoints.isEmpty()) {
             System.out.println("no breakpoints");
         } else {
@@ -510,145 +1111,297 @@ public class Debugger implements VMEventListener {
      * Retrieve a list of breakpoint in a particular tab.
      *
      * @param tabFilename the tab's file name
-     * @return the list of breakpoints in the given tab
+     * @return the list of breakpoints in the given tab, ordered by line
      */
-    public synchronized List<LineBreakpoint> getBreakpoints(String tabFilename) {
-        List<LineBreakpoint> list = new ArrayList();
-        for (LineBreakpoint bp : breakpoints) {
-            if (bp.lineID().fileName().equals(tabFilename)) {
-                list.add(bp);
-            }
-        }
-        return list;
+    public List<LineBreakpoint> getBreakpoints(String tabFilename) {
+        return breakpointIndex.get(tabFilename);
     }
 
     /**
-     * Callback for VM events. Will be called from another thread.
-     * ({@link VMEventReader})
+     * Retrieve a list of breakpoints in a range of lines of a particular tab,
+     * e.g. the visible lines.
+     *
+     * @param tabFilename the tab's file name
+     * @param firstLine index of the first line (0-based, inclusive)
+     * @param lastLine index of the last line (0-based, inclusive)
+     * @return the list of breakpoints in the given lines, ordered by line
+     */
+    public List<LineBreakpoint> getBreakpoints(String tabFilename, int firstLine, int lastLine) {
+        return breakpointIndex.get(tabFilename, firstLine, lastLine);
+    }
+
+    /**
+     * Callback for VM events. Will be called from the dispatch thread of
+     * {@link VMEventReader}. Does not lock the debugger, each event type is
+     * handled by its own handler method.
      *
      * @param es Incoming set of events from VM
      */
     @Override
-    public synchronized void vmEvent(EventSet es) {
+    public void vmEvent(EventSet es) {
+        // events aren't handled under this object's lock, so the session can be stopped meanwhile
+        if (!isCurrentVM(es.virtualMachine())) {
+            Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "ignoring events of a stopped session: {0}", es);
+            return;
+        }
+        boolean classPrepareOnly = true; // sets of only class prepare events are resumed here
         for (Event e : es) {
+            if (!(e instanceof ClassPrepareEvent)) {
+                classPrepareOnly = false;
+            }
             Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "*** VM Event: {0}", e.toString());
-            if (e instanceof VMStartEvent) {
-                //initialThread = ((VMStartEvent) e).thread();
-                ThreadReference t = ((VMStartEvent) e).thread();
-                //printStackTrace(t);
-                
-                // classes to break on when loaded. add nested classes too.
-                ArrayList<String> classList = new ArrayList<String>();
-                classList.add(mainClassName); // main class
-                classList.add(mainClassName + "$*"); // any nested classes
-                for (SketchCode tab : editor.getSketch().getCode()) { // custom classes
-                    if (tab.isExtension("java")) {
-                        classList.add(tab.getPrettyName());
-                        classList.add(tab.getPrettyName() + "$*");
-                    }
-                }
-                ClassPrepareRequest cpr;
-                for (String className : classList) {
-                    Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "requesting event on class load: {0}", className);
-                    cpr = runtime.vm().eventRequestManager().createClassPrepareRequest();
-                    cpr.addClassFilter(className);
-                    cpr.enable();
+            try {
+                if (e instanceof VMStartEvent) {
+                    handleVMStart((VMStartEvent) e);
+                } else if (e instanceof ClassPrepareEvent) {
+                    handleClassPrepare((ClassPrepareEvent) e);
+                } else if (e instanceof BreakpointEvent) {
+                    handleBreakpoint((BreakpointEvent) e);
+                } else if (e instanceof StepEvent) {
+                    handleStep((StepEvent) e);
+                } else if (e instanceof VMDisconnectEvent) {
+                    handleVMDisconnect((VMDisconnectEvent) e);
+                } else if (e instanceof VMDeathEvent) {
+                    handleVMDeath((VMDeathEvent) e);
                 }
+            } catch (VMDisconnectedException ex) {
+                Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "vm disconnected while handling {0}", e);
+                return;
+            } catch (RuntimeException ex) { // e.g. the session was stopped meanwhile. keep handling events
+                Logger.getLogger(Debugger.class.getName()).log(Level.SEVERE, "error handling " + e, ex);
+            }
+        }
+        if (classPrepareOnly && !es.isEmpty() && es.suspendPolicy() != EventRequest.SUSPEND_NONE) {
+            es.resume(); // resumes just the loading thread
+        }
+    }
 
-                runtime.vm().resume();
-            } else if (e instanceof ClassPrepareEvent) {
-                ClassPrepareEvent ce = (ClassPrepareEvent) e;
-                ReferenceType rt = ce.referenceType();
-                currentThread = ce.thread();
-                paused = true; // for now we're paused
-
-                if (rt.name().equals(mainClassName)) {
-                    //printType(rt);
-                    mainClass = rt;
-                    Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "main class load: {0}", rt.name());
-                    started = true; // now that main class is loaded, we're started
-                } else {
-                    classes.add(rt); // save loaded classes
-                    Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "class load: {0}", rt.name());
-                }
+    /**
+     * Check whether a VM is the one of the running session.
+     *
+     * @param vm the VM, e.g. of an event
+     * @return true if vm belongs to the running session, false if the
+     * session was stopped or replaced
+     */
+    protected boolean isCurrentVM(VirtualMachine vm) {
+        DebugRunner r = runtime;
+        return r != null && vm != null && r.vm() == vm;
+    }
 
-                // notify listeners
-                for (ClassLoadListener listener : classLoadListeners) {
-                    if (listener != null) {
-                        listener.classLoaded(rt);
-                    }
-                }
+    /**
+     * Handle the VM start event. Classes without breakpoints are loaded
+     * without stopping.
+     *
+     * @param e the event
+     */
+    protected void handleVMStart(VMStartEvent e) {
+        //initialThread = e.thread();
+        //ThreadReference t = e.thread();
+        //printStackTrace(t);
+        DebugRunner r = runtime;
+        Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "vm start event {0} ms after launching (class data sharing: {1})", new Object[]{
+                    (System.nanoTime() - launchStartTime) / 1000000, r != null && r.isClassDataSharing()});
+        vmStarted(e.virtualMachine());
+    }
 
-                paused = false; // resuming now
-                runtime.vm().resume();
-            } else if (e instanceof BreakpointEvent) {
-                BreakpointEvent be = (BreakpointEvent) e;
-                currentThread = be.thread(); // save this thread
-                BreakpointRequest br = (BreakpointRequest) be.request();
-
-                //printSourceLocation(currentThread);
-                updateVariableInspector(currentThread); // this is already on the EDT
-                final LineID newCurrentLine = locationToLineID(be.location());
-                javax.swing.SwingUtilities.invokeLater(new Runnable() {
-                    @Override
-                    public void run() {
-                        editor.setCurrentLine(newCurrentLine);
-                        editor.toolbar().deactivate(DebugToolbar.STEP);
-                        editor.toolbar().deactivate(DebugToolbar.CONTINUE);
-                    }
-                });
+    /**
+     * Set up a started VM. Requests class prepare events for the main class
+     * and for the classes of tabs with breakpoints, and resumes the VM. Called
+     * on the VM start event, or after adopting a VM from the {@link VMPool}.
+     *
+     * @param vm the VM
+     */
+    protected void vmStarted(VirtualMachine vm) {
+        // we're started once the main class is loaded
+        Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "requesting event on class load: {0}", mainClassName);
+        ClassPrepareRequest cpr = vm.eventRequestManager().createClassPrepareRequest();
+        cpr.addClassFilter(mainClassName);
+        cpr.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+        cpr.enable();
+        mainClassRequest = cpr;
+
+        // classes to break on when loaded (includes nested classes)
+        for (LineBreakpoint bp : breakpoints) {
+            requestClassPrepare(classKey(bp.lineID().fileName()));
+        }
 
-                // hit a breakpoint during a step, need to cancel the step.
-                if (requestedStep != null) {
-                    runtime.vm().eventRequestManager().deleteEventRequest(requestedStep);
-                    requestedStep = null;
-                }
+        vm.resume();
+    }
 
-                // fix canvas update issue
-                // TODO: is this a good solution?
-                resumeOtherThreads(currentThread);
+    /**
+     * Handle a class prepare event. Registers the class and notifies
+     * {@link ClassLoadListener}s. The loading thread is resumed by
+     * {@link #vmEvent}.
+     *
+     * @param ce the event
+     */
+    protected void handleClassPrepare(ClassPrepareEvent ce) {
+        ReferenceType rt = ce.referenceType();
+        if (rt.equals(classes.get(rt.name()))) {
+            return; // matched more than one request, already handled
+        }
+        // only the loading thread is suspended. the session may be paused in another thread, so leave its state alone
+
+        if (rt.name().equals(mainClassName)) {
+            //printType(rt);
+            mainClass = rt;
+            Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "main class load: {0}", rt.name());
+            setStarted(true); // now that main class is loaded, we're started
+            ClassPrepareRequest cpr = mainClassRequest;
+            if (cpr != null) {
+                ce.virtualMachine().eventRequestManager().deleteEventRequest(cpr);
+                mainClassRequest = null;
+            }
+        } else {
+            Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "class load: {0}", rt.name());
+        }
+        registerClass(rt, ce.thread());
+    }
 
-                paused = true;
-                editor.statusHalted();
-            } else if (e instanceof StepEvent) {
-                StepEvent se = (StepEvent) e;
-                currentThread = se.thread();
+    /**
+     * Register a loaded class. Notifies {@link ClassLoadListener}s, i.e.
+     * binds breakpoints in the class. The loading thread needs to be
+     * suspended.
+     *
+     * @param rt the class
+     * @param thread the thread that loaded the class
+     */
+    protected void registerClass(ReferenceType rt, ThreadReference thread) {
+        if (!isCurrentVM(rt.virtualMachine())) {
+            return; // the session was stopped meanwhile, don't refill the cleared registry
+        }
+        classes.add(rt); // save loaded classes
 
-                //printSourceLocation(currentThread);
-                updateVariableInspector(currentThread); // this is already on the EDT
-                final LineID newCurrentLine = locationToLineID(se.location());
-                javax.swing.SwingUtilities.invokeLater(new Runnable() {
-                    @Override
-                    public void run() {
-                        editor.setCurrentLine(newCurrentLine);
-                        editor.toolbar().deactivate(DebugToolbar.STEP);
-                        editor.toolbar().deactivate(DebugToolbar.CONTINUE);
-                    }
-                });
+        // notify listeners
+        for (ClassLoadListener listener : classLoadListeners) {
+            if (listener != null) {
+                listener.classLoaded(rt, thread);
+            }
+        }
+        // notify only the listeners of the tab this class is from
+        List<ClassLoadListener> tabListeners = tabClassLoadListeners.get(classKey(rt));
+        if (tabListeners != null) {
+            for (ClassLoadListener listener : tabListeners) {
+                listener.classLoaded(rt, thread);
+            }
+        }
+        releaseClassPrepare(classKey(rt)); // stop listening if all breakpoints are bound
+    }
 
-                // delete the steprequest that triggered this step so new ones can be placed (only one per thread)
-                EventRequestManager mgr = runtime.vm().eventRequestManager();
-                mgr.deleteEventRequest(se.request());
-                requestedStep = null; // mark that there is no step request pending
-                paused = true;
-                editor.statusHalted();
+    /**
+     * Handle a breakpoint event. Updates the current line and variable
+     * inspector. The VM stays suspended.
+     *
+     * @param be the event
+     */
+    protected void handleBreakpoint(BreakpointEvent be) {
+        ThreadReference t = be.thread(); // save this thread
+        BreakpointRequest br = (BreakpointRequest) be.request();
+        long startTime = debugStartTime;
+        if (startTime != 0) {
+            debugStartTime = 0;
+            DebugRunner r = runtime;
+            Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "first breakpoint hit {0} ms after starting to debug, {1} ms after launching (class data sharing: {2})", new Object[]{
+                        (System.nanoTime() - startTime) / 1000000, (System.nanoTime() - launchStartTime) / 1000000, r != null && r.isClassDataSharing()});
+        }
+
+        //printSourceLocation(t);
+        updateVariableInspector(t); // runs on the fetch executor
+        final LineID newCurrentLine = locationToLineID(be.location());
+        javax.swing.SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                editor.setCurrentLine(newCurrentLine);
+                editor.toolbar().deactivate(DebugToolbar.STEP);
+                editor.toolbar().deactivate(DebugToolbar.CONTINUE);
+            }
+        });
 
-                // disallow stepping into invisible lines
-                if (!locationIsVisible(se.location())) {
-                    stepOutIntoViewOrContinue(); // TODO: this leads to stepping, should it run on the EDT?
-                }
-            } else if (e instanceof VMDisconnectEvent) {
-//                started = false;
-//                // clear line highlight
-//                editor.clearCurrentLine();
-                stopDebug();
-            } else if (e instanceof VMDeathEvent) {
-                started = false;
-                editor.statusEmpty();
+        // hit a breakpoint during a step, need to cancel the step.
+        StepRequest step = state.get().requestedStep();
+        if (step != null) {
+            be.virtualMachine().eventRequestManager().deleteEventRequest(step);
+        }
+
+        // fix canvas update issue
+        // TODO: is this a good solution?
+        resumeOtherThreads(t);
+
+        setSuspendedAt(t); // paused, no step pending
+        editor.statusHalted();
+    }
+
+    /**
+     * Handle a step event. Updates the current line and variable inspector.
+     * The VM stays suspended, unless the step ended up in an invisible line.
+     *
+     * @param se the event
+     */
+    protected void handleStep(StepEvent se) {
+        ThreadReference t = se.thread();
+
+        //printSourceLocation(t);
+        updateVariableInspector(t); // runs on the fetch executor
+        final LineID newCurrentLine = locationToLineID(se.location());
+        javax.swing.SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                editor.setCurrentLine(newCurrentLine);
+                editor.toolbar().deactivate(DebugToolbar.STEP);
+                editor.toolbar().deactivate(DebugToolbar.CONTINUE);
             }
+        });
+
+        // delete the steprequest that triggered this step so new ones can be placed (only one per thread)
+        EventRequestManager mgr = se.virtualMachine().eventRequestManager();
+        mgr.deleteEventRequest(se.request());
+        setSuspendedAt(t); // mark that there is no step request pending
+        editor.statusHalted();
+
+        // disallow stepping into invisible lines
+        if (!locationIsVisible(se.location())) {
+            final VirtualMachine vm = se.virtualMachine();
+            javax.swing.SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if (isCurrentVM(vm) && isPaused()) { // like the user pressing step or continue
+                        stepOutIntoViewOrContinue();
+                    }
+                }
+            });
         }
     }
 
+    /**
+     * Handle the VM disconnect event. Ends the session.
+     *
+     * @param e the event
+     */
+    protected void handleVMDisconnect(VMDisconnectEvent e) {
+//        setStarted(false);
+//        // clear line highlight
+//        editor.clearCurrentLine();
+        final VirtualMachine vm = e.virtualMachine();
+        javax.swing.SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (isCurrentVM(vm)) { // not stopped or restarted meanwhile
+                    stopDebug();
+                }
+            }
+        });
+    }
+
+    /**
+     * Handle the VM death event.
+     *
+     * @param e the event
+     */
+    protected void handleVMDeath(VMDeathEvent e) {
+        setStarted(false);
+        editor.statusEmpty();
+    }
+
     /**
      * Check whether a location corresponds to a code line in the editor.
      *
@@ -661,10 +1414,11 @@ public class Debugger implements VMEventListener {
 
     /**
      * Step out if this results in a visible location, otherwise continue.
+     * Called on the event dispatch thread.
      */
     protected void stepOutIntoViewOrContinue() {
         try {
-            List<StackFrame> frames = currentThread.frames();
+            List<StackFrame> frames = currentThread().frames();
             if (frames.size() > 1) {
                 if (locationIsVisible(frames.get(1).location())) {
                     //System.out.println("stepping out to: " + locationToString(frames.get(1).location()));
@@ -694,19 +1448,33 @@ public class Debugger implements VMEventListener {
      *
      * @return true if the debugger is started.
      */
-    public synchronized boolean isStarted() {
-        return started && runtime != null && runtime.vm() != null;
+    public boolean isStarted() {
+        DebugRunner r = runtime;
+        return state.get().started() && r != null && r.vm() != null;
+    }
+
+    /**
+     * Check whether a debugging session is being launched or running, i.e.
+     * its build folder is in use. Unlike {@link #isStarted()}, also true
+     * while building and launching, before the main class is loaded.
+     *
+     * @return true if a session is launching or started
+     */
+    public boolean isActive() {
+        return launching || runtime != null;
     }
 
     /**
      * Check whether the debugger is paused. i.e. it is currently suspended at a
-     * breakpoint or step.
+     * breakpoint or step. Answered from the session state alone, without
+     * asking the VM, so it's cheap to poll from the UI.
      *
      * @return true if the debugger is paused, false otherwise or if not started
      * ({@link #isStarted()})
      */
-    public synchronized boolean isPaused() {
-        return isStarted() && paused && currentThread != null && currentThread.isSuspended();
+    public boolean isPaused() {
+        DebuggerState s = state.get();
+        return isStarted() && s.paused() && s.currentThread() != null;
     }
 
     /**
@@ -715,7 +1483,7 @@ public class Debugger implements VMEventListener {
      *
      * @return true if the debugger is currently running and not suspended.
      */
-    public synchronized boolean isBusy() {
+    public boolean isBusy() {
         return isStarted() && !isPaused();
     }
 
@@ -761,7 +1529,7 @@ public class Debugger implements VMEventListener {
      * Print info about all current threads. Includes name, status, isSuspended,
      * isAtBreakpoint.
      */
-    public synchronized void printThreads() {
+    public void printThreads() {
         if (!isPaused()) {
             return;
         }
@@ -851,33 +1619,120 @@ public class Debugger implements VMEventListener {
 
     /**
      * Update variable inspector window. Displays local variables and this
-     * fields.
+     * fields. Schedules a snapshot job on the fetch executor and returns
+     * immediately. A previously scheduled job that has not finished yet
+     * becomes stale and is dropped.
      *
      * @param t suspended thread to retrieve locals and this
      */
     protected void updateVariableInspector(ThreadReference t) {
-        if (!t.isSuspended()) {
-            return;
+        long generation = snapshotGeneration.incrementAndGet(); // invalidates any running job
+        Future<?> previous = snapshotJob;
+        if (previous != null) {
+            previous.cancel(false); // drop it if it hasn't started yet
         }
-        try {
-            if (t.frameCount() == 0) {
-                // TODO: needs to be handled in a better way:
-                Logger.getLogger(Debugger.class.getName()).log(Level.WARNING, "call stack empty");
-            } else {
+        snapshotJob = fetchExecutor.submit(new SnapshotJob(t, generation));
+    }
+
+    /**
+     * Mark any pending or running variable inspector update as stale. Call this
+     * when resuming the VM.
+     */
+    protected void cancelVariableInspectorUpdate() {
+        snapshotGeneration.incrementAndGet();
+    }
+
+    /**
+     * Fetches the variable inspector contents for one suspension, off the VM
+     * event thread. Publishes the results to the EDT in two parts: the locals
+     * and fields of this (including the children of expanded nodes) in one
+     * rebuild, then the call stack. Quits as soon as a
+     * newer suspension or a resume makes it stale.
+     */
+    protected class SnapshotJob implements Runnable {
+
+        protected ThreadReference t; // the suspended thread
+        protected long generation; // the snapshot generation this job was created for
+
+        public SnapshotJob(ThreadReference t, long generation) {
+            this.t = t;
+            this.generation = generation;
+        }
+
+        /**
+         * Check whether this job has been superseded.
+         *
+         * @return true if a newer suspension or a resume happened since this
+         * job was scheduled
+         */
+        protected boolean isStale() {
+            return generation != snapshotGeneration.get();
+        }
+
+        /**
+         * Run a task on the EDT, unless this job is stale by then.
+         *
+         * @param task the task
+         */
+        protected void publish(final Runnable task) {
+            javax.swing.SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isStale()) {
+                        task.run();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            if (isStale()) {
+                return;
+            }
+            fetcher.resetRoundTrips();
+            try {
+                if (!t.isSuspended()) {
+                    return;
+                }
+                if (t.frameCount() == 0) {
+                    // TODO: needs to be handled in a better way:
+                    Logger.getLogger(Debugger.class.getName()).log(Level.WARNING, "call stack empty");
+                    return;
+                }
                 final VariableInspector vi = editor.variableInspector();
-                // first get data
-                final List<DefaultMutableTreeNode> stackTrace = getStackTrace(t);
-                final List<VariableNode> locals = getLocals(t, 0);
-                final String currentLocation = currentLocation(t);
-                final List<VariableNode> thisFields = getThisFields(t, 0, true);
-                final List<VariableNode> declaredThisFields = getThisFields(t, 0, false);
-                final String thisName = thisName(t);
-                // now update asynchronously
-                javax.swing.SwingUtilities.invokeLater(new Runnable() {
+                // fetch the top frame once, and use it for everything
+                StackFrame sf = t.frame(0);
+                final String currentLocation = locationToString(sf.location());
+                final List<VariableNode> locals = getLocals(sf, 0);
+                if (isStale()) {
+                    return;
+                }
+
+                ObjectReference thisObj = sf.thisObject();
+                final List<VariableNode> thisFields;
+                final List<VariableNode> declaredThisFields;
+                final String thisName;
+                if (thisObj != null) {
+                    // fetch all visible fields once, the declared ones are a subset
+                    TypeInfo thisType = typeInfo(thisObj.referenceType());
+                    Map<Field, Value> values = fetcher.getValues(thisObj, thisType.visibleFields());
+                    thisFields = getFields(thisObj, thisType, thisType.visibleFields(), values, 0, 0, true);
+                    declaredThisFields = getFields(thisObj, thisType, thisType.declaredFields(), values, 0, 0, false);
+                    thisName = thisType.name();
+                } else { // static method
+                    thisFields = new ArrayList();
+                    declaredThisFields = new ArrayList();
+                    thisName = "";
+                }
+                if (isStale()) {
+                    return;
+                }
+                vi.fetchExpandedChildren(locals, thisFields, declaredThisFields); // so the EDT only merges
+                // rebuild once per snapshot. merging the same nodes again would clear their changed marks
+                publish(new Runnable() {
                     @Override
                     public void run() {
-                        //System.out.println("updating vi. from EDT: " + javax.swing.SwingUtilities.isEventDispatchThread());
-                        vi.updateCallStack(stackTrace, "Call Stack");
                         vi.updateLocals(locals, "Locals at " + currentLocation);
                         vi.updateThisFields(thisFields, "Class " + thisName);
                         vi.updateDeclaredThisFields(declaredThisFields, "Class " + thisName);
@@ -885,9 +1740,27 @@ public class Debugger implements VMEventListener {
                         vi.rebuild();
                     }
                 });
+                if (isStale()) {
+                    return;
+                }
+
+                final List<DefaultMutableTreeNode> stackTrace = getStackTrace(t);
+                publish(new Runnable() {
+                    @Override
+                    public void run() {
+                        vi.updateCallStack(stackTrace, "Call Stack");
+                    }
+                });
+                Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "variable inspector values fetched in {0} requests", fetcher.roundTrips());
+            } catch (IncompatibleThreadStateException ex) {
+                // thread was resumed in the meantime
+                Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "variable inspector update dropped, thread resumed");
+            } catch (InvalidStackFrameException ex) {
+                // thread was resumed in the meantime
+                Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "variable inspector update dropped, frame invalid");
+            } catch (VMDisconnectedException ex) {
+                Logger.getLogger(Debugger.class.getName()).log(Level.INFO, "variable inspector update dropped, vm disconnected");
             }
-        } catch (IncompatibleThreadStateException ex) {
-            Logger.getLogger(Debugger.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
 
@@ -957,22 +1830,41 @@ public class Debugger implements VMEventListener {
      */
     protected List<VariableNode> getLocals(ThreadReference t, int depth) {
         //System.out.println("getting locals");
-        List<VariableNode> vars = new ArrayList();
         try {
             if (t.frameCount() > 0) {
-                StackFrame sf = t.frame(0);
-                for (LocalVariable lv : sf.visibleVariables()) {
-                    //System.out.println("local var: " + lv.name());
-                    Value val = sf.getValue(lv);
-                    VariableNode var = new LocalVariableNode(lv.name(), lv.typeName(), val, lv, sf);
-                    if (depth > 0) {
-                        var.addChildren(getFields(val, depth - 1, true));
-                    }
-                    vars.add(var);
-                }
+                return getLocals(t.frame(0), depth);
             }
         } catch (IncompatibleThreadStateException ex) {
             Logger.getLogger(Debugger.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return new ArrayList();
+    }
+
+    /**
+     * Compile a list of locals in a stack frame usable for insertion into a
+     * {@link JTree}. Recursively resolves object references.
+     *
+     * @param sf the stack frame to get locals for
+     * @param depth how deep to resolve nested object references. 0 will not
+     * resolve nested objects.
+     * @return the list of locals
+     */
+    protected List<VariableNode> getLocals(StackFrame sf, int depth) {
+        List<VariableNode> vars = new ArrayList();
+        try {
+            List<LocalVariable> visible = sf.visibleVariables();
+            Map<LocalVariable, Value> values = fetcher.getValues(sf, visible); // fetch all values at once
+            for (LocalVariable lv : visible) {
+                //System.out.println("local var: " + lv.name());
+                Value val = values.get(lv);
+                String typeName = lv.typeName();
+                int typeCode = VariableNode.typeCode(typeName);
+                VariableNode var = new LocalVariableNode(lv.name(), typeName, typeCode, val, childCount(typeCode, val), lv, sf);
+                if (depth > 0) {
+                    var.addChildren(getFields(val, depth - 1, true));
+                }
+                vars.add(var);
+            }
         } catch (AbsentInformationException ex) {
             Logger.getLogger(Debugger.class.getName()).log(Level.WARNING, "local variable information not available", ex);
         }
@@ -1020,17 +1912,39 @@ public class Debugger implements VMEventListener {
             } else if (value instanceof ObjectReference) {
                 ObjectReference obj = (ObjectReference) value;
                 // get the fields of this object
-                List<Field> fields = includeInherited ? obj.referenceType().visibleFields() : obj.referenceType().fields();
-                for (Field field : fields) {
-                    Value val = obj.getValue(field); // get the value, may be null
-                    VariableNode var = new FieldNode(field.name(), field.typeName(), val, field, obj);
-                    // recursively add children
-                    if (val != null) {
-                        var.addChildren(getFields(val, depth + 1, maxDepth, includeInherited));
-                    }
-                    vars.add(var);
-                }
+                TypeInfo type = typeInfo(obj.referenceType());
+                List<Field> fields = type.fields(includeInherited);
+                Map<Field, Value> values = fetcher.getValues(obj, fields); // fetch all values at once
+                return getFields(obj, type, fields, values, depth, maxDepth, includeInherited);
+            }
+        }
+        return vars;
+    }
+
+    /**
+     * Create {@link FieldNode}s for a list of fields from already fetched
+     * values. Recursively gets the fields of the values.
+     *
+     * @param obj the object containing the fields
+     * @param type the metadata of the object's class
+     * @param fields the fields to create nodes for
+     * @param values the fetched values, must contain all fields
+     * @param depth the current depth
+     * @param maxDepth the depth to stop at (inclusive)
+     * @param includeInherited true to include inherited fields when recursing
+     * @return list of field nodes
+     */
+    protected List<VariableNode> getFields(ObjectReference obj, TypeInfo type, List<Field> fields, Map<Field, Value> values, int depth, int maxDepth, boolean includeInherited) {
+        List<VariableNode> vars = new ArrayList();
+        for (Field field : fields) {
+            Value val = values.get(field); // get the value, may be null
+            int typeCode = type.typeCode(field);
+            VariableNode var = new FieldNode(field.name(), type.typeName(field), typeCode, val, childCount(typeCode, val), field, obj);
+            // recursively add children
+            if (val != null && depth < maxDepth) {
+                var.addChildren(getFields(val, depth + 1, maxDepth, includeInherited));
             }
+            vars.add(var);
         }
         return vars;
     }
@@ -1048,21 +1962,55 @@ public class Debugger implements VMEventListener {
     }
 
     /**
-     * Get the fields of an array for insertion into a {@link JTree}.
+     * Get the fields of an array for insertion into a {@link JTree}. Large
+     * arrays are split into ranges (see {@link #getArrayFields(ArrayReference, int, int)}).
      *
      * @param array the array reference
      * @return list of array fields
      */
     protected List<VariableNode> getArrayFields(ArrayReference array) {
+        if (array == null) {
+            return new ArrayList();
+        }
+        return getArrayFields(array, 0, array.length());
+    }
+
+    /**
+     * Get the fields of a range of an array for insertion into a {@link JTree}.
+     * If the range has more than {@link #ARRAY_PAGE_SIZE} elements, returns
+     * {@link ArrayRangeNode}s for sub-ranges instead, without fetching any
+     * values. Ranges are nested, so no node has more than
+     * {@link #ARRAY_PAGE_SIZE} children.
+     *
+     * @param array the array reference
+     * @param start index of the first element
+     * @param length number of elements
+     * @return list of array fields or sub-ranges
+     */
+    public List<VariableNode> getArrayFields(ArrayReference array, int start, int length) {
         List<VariableNode> fields = new ArrayList();
         if (array != null) {
             String arrayType = array.type().name();
-            if (arrayType.endsWith("[]")) {
-                arrayType = arrayType.substring(0, arrayType.length() - 2);
+            if (length > ARRAY_PAGE_SIZE) {
+                // size of a sub-range, so there are at most ARRAY_PAGE_SIZE of them
+                long rangeSize = ARRAY_PAGE_SIZE;
+                while (length > rangeSize * ARRAY_PAGE_SIZE) {
+                    rangeSize *= ARRAY_PAGE_SIZE;
+                }
+                for (long i = start; i < start + length; i += rangeSize) {
+                    int rangeLength = (int) Math.min(rangeSize, start + length - i);
+                    fields.add(new ArrayRangeNode(arrayType, array, (int) i, rangeLength));
+                }
+                return fields;
             }
-            int i = 0;
-            for (Value val : array.getValues()) {
-                VariableNode var = new ArrayFieldNode("[" + i + "]", arrayType, val, array, i);
+            String elementType = arrayType;
+            if (elementType.endsWith("[]")) {
+                elementType = elementType.substring(0, elementType.length() - 2);
+            }
+            int elementTypeCode = VariableNode.typeCode(elementType);
+            int i = start;
+            for (Value val : fetcher.getValues(array, start, length)) {
+                VariableNode var = new ArrayFieldNode("[" + i + "]", elementType, elementTypeCode, val, childCount(elementTypeCode, val), array, i);
                 fields.add(var);
                 i++;
             }
@@ -1070,6 +2018,58 @@ public class Debugger implements VMEventListener {
         return fields;
     }
 
+    /**
+     * Get the metadata of a class. Queried from the VM on first use and cached
+     * until the class is redefined (see {@link #invalidateTypeInfo}) or the VM
+     * disconnects.
+     *
+     * @param type the class
+     * @return the metadata of the class
+     */
+    protected TypeInfo typeInfo(ReferenceType type) {
+        TypeInfo info = typeInfos.get(type);
+        if (info == null) {
+            info = new TypeInfo(type);
+            TypeInfo existing = typeInfos.putIfAbsent(type, info);
+            if (existing != null) {
+                info = existing;
+            }
+        }
+        return info;
+    }
+
+    /**
+     * Drop the cached metadata of a class. Needs to be called when the class
+     * is redefined.
+     *
+     * @param type the class
+     */
+    protected void invalidateTypeInfo(ReferenceType type) {
+        typeInfos.remove(type);
+    }
+
+    /**
+     * Get the number of children of a value for display, i.e. the length of an
+     * array or the number of visible fields of an object. Uses the cached class
+     * metadata for objects.
+     *
+     * @param typeCode the {@link VariableNode} type code of the variable
+     * @param value the value, may be null
+     * @return the number of children
+     */
+    protected int childCount(int typeCode, Value value) {
+        if (value == null) {
+            return 0;
+        }
+        if (typeCode == VariableNode.TYPE_ARRAY && value instanceof ArrayReference) {
+            return ((ArrayReference) value).length();
+        }
+        if (typeCode == VariableNode.TYPE_OBJECT && value instanceof ObjectReference) {
+            return typeInfo(((ObjectReference) value).referenceType()).visibleFields().size();
+        }
+        return 0;
+    }
+
     /**
      * Get the current call stack trace usable for insertion into a
      * {@link JTree}.
@@ -1222,22 +2222,84 @@ public class Debugger implements VMEventListener {
     }
 
     /**
-     * Translate a java source location to a sketch line id.
+     * Translate a java source location to a sketch line id. The sketch line of
+     * a location is resolved once per session and cached, since asking the VM
+     * for its source name and line number is expensive (e.g. for every frame
+     * of a deep call stack). The runtime line (after edits) is cached along
+     * with it and recalculated only when the tab was edited since.
      *
      * @param l the location to translate
      * @return the corresponding line id, or null if not found
      */
     protected LineID locationToLineID(Location l) {
+        LocationLine cached = locationLines.get(l);
+        if (cached == null) {
+            cached = new LocationLine(locationToOriginalLine(l));
+            locationLines.put(l, cached);
+        }
+        return cached.runtimeLine();
+    }
+
+    /**
+     * Translate a java source location to a sketch line id as of the current
+     * build, i.e. without applying line changes due to edits.
+     *
+     * @param l the location to translate
+     * @return the corresponding original line id, or null if not found
+     */
+    protected LineID locationToOriginalLine(Location l) {
         try {
             //return lineMap.get(LineID.create(l.sourceName(), l.lineNumber() - 1));
-            return javaToSketchLine(new LineID(l.sourceName(), l.lineNumber() - 1));
-
+            return sketchIndex().javaToSketchLine(new LineID(l.sourceName(), l.lineNumber() - 1));
         } catch (AbsentInformationException ex) {
             Logger.getLogger(Debugger.class.getName()).log(Level.SEVERE, null, ex);
             return null;
         }
     }
 
+    /**
+     * A cached sketch line of a location. Holds the original line (as of the
+     * build) and its runtime counterpart, along with the state of the tab's
+     * {@link LineTracker} the runtime line was calculated at.
+     */
+    protected class LocationLine {
+
+        protected final LineID originalLine; // the line as of the build, null if the location isn't in the sketch
+        protected volatile LineID runtimeLine; // the line after edits
+        protected volatile LineTracker tracker; // the tracker runtimeLine was calculated with
+        protected volatile int edits; // the tracker's edit count runtimeLine was calculated at
+
+        protected LocationLine(LineID originalLine) {
+            this.originalLine = originalLine;
+            this.runtimeLine = originalLine;
+            this.edits = 0;
+        }
+
+        /**
+         * Get the runtime line. Recalculates it when the tab's line tracker
+         * reports edits since the last call.
+         *
+         * @return the runtime line id, or null if the location isn't in the
+         * sketch
+         */
+        protected LineID runtimeLine() {
+            if (originalLine == null) {
+                return null;
+            }
+            LineTracker t = lineTrackers.get(originalLine.fileName());
+            if (t == null) {
+                return originalLine;
+            }
+            int e = t.edits();
+            if (t != tracker || e != edits) {
+                runtimeLine = originalToRuntimeLine(originalLine);
+                tracker = t;
+                edits = e;
+            }
+            return runtimeLine;
+        }
+    }
+
     /**
      * Translate a line (index) from java space to sketch space.
      *
@@ -1245,34 +2307,28 @@ public class Debugger implements VMEventListener {
      * @return the corresponding sketch line id or null if failed to translate
      */
     public LineID javaToSketchLine(LineID javaLine) {
-        Sketch sketch = editor.getSketch();
-
-        // it may belong to a pure java file created in the sketch
-        // try to find an exact filename match and check the extension
-        SketchCode tab = editor.getTab(javaLine.fileName());
-        if (tab != null && tab.isExtension("java")) {
-            // can translate 1:1
-            return originalToRuntimeLine(javaLine);
-        }
-
-        // check if it is the preprocessed/assembled file for this sketch
-        // java file name needs to match the sketches filename
-        if (!javaLine.fileName().equals(sketch.getName() + ".java")) {
+        // find the tab this line belongs to (as of the build), binary search over the tab offsets
+        LineID sketchLine = sketchIndex().javaToSketchLine(javaLine);
+        if (sketchLine == null) {
             return null;
         }
+        return originalToRuntimeLine(sketchLine);
+    }
 
-        // find the tab (.pde file) this line belongs to
-        // get the last tab that has an offset not greater than the java line number
-        for (int i = sketch.getCodeCount() - 1; i >= 0; i--) {
-            tab = sketch.getCode(i);
-            // ignore .java files
-            // the tab's offset must not be greater than the java line number
-            if (tab.isExtension("pde") && tab.getPreprocOffset() <= javaLine.lineIdx()) {
-                return originalToRuntimeLine(new LineID(tab.getFileName(), javaLine.lineIdx() - tab.getPreprocOffset()));
-            }
+    /**
+     * Get the index of the sketch's tabs for translating lines. Uses the
+     * index of the current build, or indexes the sketch as it is if nothing
+     * was built yet.
+     *
+     * @return the sketch index
+     */
+    protected SketchIndex sketchIndex() {
+        SketchIndex index = sketchIndex;
+        if (index == null) {
+            index = new SketchIndex(editor.getSketch());
+            sketchIndex = index;
         }
-
-        return null;
+        return index;
     }
 
     /**
@@ -1284,11 +2340,12 @@ public class Debugger implements VMEventListener {
      * @return the changed version or the line given as parameter if not found
      */
     protected LineID originalToRuntimeLine(LineID line) {
-        LineID transformed = runtimeLineChanges.get(line);
-        if (transformed == null) {
+        LineTracker tracker = lineTrackers.get(line.fileName());
+        if (tracker == null) {
             return line;
         }
-        return transformed;
+        int lineIdx = tracker.originalToRuntime(line.lineIdx());
+        return lineIdx == line.lineIdx() ? line : new LineID(line.fileName(), lineIdx);
     }
 
     /**
@@ -1300,12 +2357,12 @@ public class Debugger implements VMEventListener {
      * @return the original line or the line given as parameter if not found
      */
     protected LineID runtimeToOriginalLine(LineID line) {
-        for (Entry<LineID, LineID> entry : runtimeLineChanges.entrySet()) {
-            if (entry.getValue().equals(line)) {
-                return entry.getKey();
-            }
+        LineTracker tracker = lineTrackers.get(line.fileName());
+        if (tracker == null) {
+            return line;
         }
-        return line;
+        int lineIdx = tracker.runtimeToOriginal(line.lineIdx());
+        return lineIdx == line.lineIdx() ? line : new LineID(line.fileName(), lineIdx);
     }
 
     /**
@@ -1317,22 +2374,8 @@ public class Debugger implements VMEventListener {
     public LineID sketchToJavaLine(LineID sketchLine) {
         sketchLine = runtimeToOriginalLine(sketchLine); // transform back to orig (before changes at runtime)
 
-        // check if there is a tab for this line
-        SketchCode tab = editor.getTab(sketchLine.fileName());
-        if (tab == null) {
-            return null;
-        }
-
-        // check if the tab is a pure java file anyway
-        if (tab.isExtension("java")) {
-            // 1:1 translation
-            return sketchLine;
-        }
-
-        // the java file has a name sketchname.java
-        // just add the tab's offset to get the java name
-        LineID javaLine = new LineID(editor.getSketch().getName() + ".java", sketchLine.lineIdx() + tab.getPreprocOffset());
-        return javaLine;
+        // pure java tabs translate 1:1, .pde tabs are offset in sketchname.java
+        return sketchIndex().sketchToJavaLine(sketchLine);
     }
 
     /**
@@ -1341,17 +2384,10 @@ public class Debugger implements VMEventListener {
     // TODO: maybe move this to the editor?
     protected void startTrackingLineChanges() {
         SketchCode tab = editor.getSketch().getCurrentCode();
-        if (runtimeTabsTracked.contains(tab.getFileName())) {
+        if (lineTrackers.containsKey(tab.getFileName()) || editor.currentDocument() == null) {
             return;
         }
-
-        for (int i = 0; i < tab.getLineCount(); i++) {
-            LineID old = new LineID(tab.getFileName(), i);
-            LineID tracked = new LineID(tab.getFileName(), i);
-            tracked.startTracking(editor.currentDocument());
-            runtimeLineChanges.put(old, tracked);
-        }
-        runtimeTabsTracked.add(tab.getFileName());
+        lineTrackers.put(tab.getFileName(), new LineTracker(tab.getFileName(), editor.currentDocument()));
         //System.out.println("tracking tab: " + tab.getFileName());
     }
 
@@ -1360,10 +2396,9 @@ public class Debugger implements VMEventListener {
      */
     protected void stopTrackingLineChanges() {
         //System.out.println("stop tracking line changes");
-        for (LineID tracked : runtimeLineChanges.values()) {
-            tracked.stopTracking();
+        for (LineTracker tracker : lineTrackers.values()) {
+            tracker.dispose();
         }
-        runtimeLineChanges.clear();
-        runtimeTabsTracked.clear();
+        lineTrackers.clear();
     }
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 Martin Leopold <m@martinleopold.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package com.martinleopold.mode.debug;
+
+import com.sun.jdi.ThreadReference;
+import com.sun.jdi.request.StepRequest;
+
+/**
+ * Immutable snapshot of a debugging session's state. {@link Debugger} holds
+ * the current state in an atomic reference and replaces it as a whole, so the
+ * UI can read it at any time without locking against the VM event thread.
+ *
+ * @author Martin Leopold <m@martinleopold.com>
+ */
+public final class DebuggerState {
+
+    /**
+     * State of a debugger that is not connected to a VM.
+     */
+    public static final DebuggerState STOPPED = new DebuggerState(false, false, null, null);
+    protected final boolean started; // debuggee vm has started, VMStartEvent received, main class loaded
+    protected final boolean paused; // currently paused at breakpoint or step
+    protected final ThreadReference currentThread; // thread the last breakpoint or step occured in
+    protected final StepRequest requestedStep; // the step request we are currently in, or null if not in a step
+
+    protected DebuggerState(boolean started, boolean paused, ThreadReference currentThread, StepRequest requestedStep) {
+        this.started = started;
+        this.paused = paused;
+        this.currentThread = currentThread;
+        this.requestedStep = requestedStep;
+    }
+
+    public boolean started() {
+        return started;
+    }
+
+    public boolean paused() {
+        return paused;
+    }
+
+    public ThreadReference currentThread() {
+        return currentThread;
+    }
+
+    public StepRequest requestedStep() {
+        return requestedStep;
+    }
+
+    public DebuggerState withStarted(boolean started) {
+        return new DebuggerState(started, paused, currentThread, requestedStep);
+    }
+
+    public DebuggerState withPaused(boolean paused) {
+        return new DebuggerState(started, paused, currentThread, requestedStep);
+    }
+
+    public DebuggerState withCurrentThread(ThreadReference currentThread) {
+        return new DebuggerState(started, paused, currentThread, requestedStep);
+    }
+
+    public DebuggerState withRequestedStep(StepRequest requestedStep) {
+        return new DebuggerState(started, paused, currentThread, requestedStep);
+    }
+
+    /**
+     * Get the state after resuming, i.e. continuing or stepping.
+     *
+     * @param step the pending step request, or null if not stepping
+     * @return the new state, running with the given step pending
+     */
+    public DebuggerState resumed(StepRequest step) {
+        return new DebuggerState(started, false, currentThread, step);
+    }
+
+    /**
+     * Get the state after suspending at a breakpoint or step.
+     *
+     * @param thread the thread that was suspended
+     * @return the new state, paused in the given thread with no pending step
+     */
+    public DebuggerState suspendedAt(ThreadReference thread) {
+        return new DebuggerState(started, true, thread, null);
+    }
+
+    @Override
+    public String toString() {
+        return "started: " + started + ", paused: " + paused + ", thread: " + currentThread + ", step: " + requestedStep;
+    }
+}
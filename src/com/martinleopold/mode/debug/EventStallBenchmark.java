@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2015 Martin Leopold <m@martinleopold.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package com.martinleopold.mode.debug;
+
+import com.sun.jdi.VMDisconnectedException;
+import com.sun.jdi.event.BreakpointEvent;
+import com.sun.jdi.event.Event;
+import com.sun.jdi.event.EventQueue;
+import com.sun.jdi.event.EventSet;
+import com.sun.jdi.request.EventRequest;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Stress test of the VM event pipeline. Feeds thousands of synthetic event
+ * sets through a {@link VMEventReader}, each event taking a while to handle
+ * like a few JDWP round trips, while a timer on the event dispatch thread
+ * polls the session state the way the toolbar does. Measures how long the
+ * polls stall. Runs twice: with the handler and the poll sharing a monitor,
+ * as the debugger used to, and with the session state in an atomic
+ * {@link DebuggerState}, as it is now. Prints the results to the console.
+ * Doesn't need a running sketch.
+ *
+ * @author Martin Leopold <m@martinleopold.com>
+ */
+public class EventStallBenchmark implements Runnable {
+
+    public static final int EVENT_SETS = 2000; // synthetic event sets per run
+    public static final int EVENTS_PER_SET = 4; // events per set
+    public static final long HANDLER_NANOS = 100000; // time to handle one event, i.e. a few JDWP round trips
+    public static final int POLL_INTERVAL = 5; // ms between state polls on the event dispatch thread
+
+    /**
+     * Run the benchmark. Blocks until done, don't call on the event dispatch
+     * thread.
+     */
+    @Override
+    public void run() {
+        try {
+            Result locked = measure(true);
+            Result atomic = measure(false);
+            System.out.println("event handling stall, " + EVENT_SETS * EVENTS_PER_SET + " events:");
+            System.out.println("  shared monitor: " + locked);
+            System.out.println("  atomic state:   " + atomic);
+        } catch (Exception ex) {
+            Logger.getLogger(EventStallBenchmark.class.getName()).log(Level.SEVERE, "benchmark failed", ex);
+        }
+    }
+
+    /**
+     * Stall times of the state polls of one run.
+     */
+    protected static class Result {
+
+        protected int polls = 0; // number of polls
+        protected long totalNanos = 0; // time spent polling
+        protected long maxNanos = 0; // longest poll
+        protected long runMillis; // time to handle all events
+
+        protected void add(long nanos) {
+            polls++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        @Override
+        public String toString() {
+            return "max " + maxNanos / 1000000.0 + " ms, total " + totalNanos / 1000000.0 + " ms over " + polls + " polls, events handled in " + runMillis + " ms";
+        }
+    }
+
+    /**
+     * Handle the synthetic events once, polling the state on the event
+     * dispatch thread meanwhile.
+     *
+     * @param locked true to handle events and poll under a shared monitor,
+     * false to use an atomic state
+     * @return the stall times of the polls
+     * @throws Exception if the event dispatch thread was interrupted
+     */
+    protected Result measure(final boolean locked) throws Exception {
+        final Object monitor = new Object();
+        final AtomicReference<DebuggerState> state = new AtomicReference(DebuggerState.STOPPED.withStarted(true));
+        final Result result = new Result();
+        final Timer timer = new Timer(POLL_INTERVAL, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                long start = System.nanoTime();
+                if (locked) {
+                    synchronized (monitor) {
+                        state.get().paused();
+                    }
+                } else {
+                    state.get().paused();
+                }
+                result.add(System.nanoTime() - start);
+            }
+        });
+        VMEventListener handler = new VMEventListener() {
+            @Override
+            public void vmEvent(EventSet es) {
+                if (locked) {
+                    synchronized (monitor) {
+                        handle(es, state);
+                    }
+                } else {
+                    handle(es, state);
+                }
+            }
+        };
+        SwingUtilities.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                timer.start();
+            }
+        });
+        long start = System.nanoTime();
+        VMEventReader reader = new VMEventReader(syntheticQueue(EVENT_SETS), handler);
+        reader.start();
+        reader.join();
+        reader.dispatcher.join();
+        result.runMillis = (System.nanoTime() - start) / 1000000;
+        SwingUtilities.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                timer.stop();
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Handle an event set: simulate the work of each event and update the
+     * session state, as the debugger does on a breakpoint.
+     */
+    protected static void handle(EventSet es, AtomicReference<DebuggerState> state) {
+        for (Event e : es) {
+            LockSupport.parkNanos(HANDLER_NANOS);
+            DebuggerState s;
+            do {
+                s = state.get();
+            } while (!state.compareAndSet(s, s.suspendedAt(null)));
+        }
+    }
+
+    /**
+     * Create an event queue delivering synthetic event sets of breakpoint
+     * events, then reporting a disconnect.
+     *
+     * @param count the number of event sets
+     * @return the queue
+     */
+    protected static EventQueue syntheticQueue(final int count) {
+        final AtomicInteger delivered = new AtomicInteger();
+        return (EventQueue) Proxy.newProxyInstance(EventQueue.class.getClassLoader(), new Class[]{EventQueue.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("remove")) {
+                    if (delivered.getAndIncrement() >= count) {
+                        throw new VMDisconnectedException();
+                    }
+                    return syntheticEventSet();
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+    }
+
+    /**
+     * Create an event set of synthetic breakpoint events.
+     *
+     * @return the event set
+     */
+    protected static EventSet syntheticEventSet() {
+        final Set<Event> events = new LinkedHashSet();
+        for (int i = 0; i < EVENTS_PER_SET; i++) {
+            events.add((Event) Proxy.newProxyInstance(BreakpointEvent.class.getClassLoader(), new Class[]{BreakpointEvent.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    return defaultValue(proxy, method, args);
+                }
+            }));
+        }
+        return (EventSet) Proxy.newProxyInstance(EventSet.class.getClassLoader(), new Class[]{EventSet.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("suspendPolicy")) {
+                    return EventRequest.SUSPEND_ALL;
+                }
+                if (method.getDeclaringClass().isInstance(events)) { // Set methods
+                    try {
+                        return method.invoke(events, args);
+                    } catch (InvocationTargetException ex) {
+                        throw ex.getCause();
+                    }
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+    }
+
+    /**
+     * Answer a call to a synthetic mirror: identity for equals and hashCode,
+     * a description for toString, nothing for the rest.
+     */
+    protected static Object defaultValue(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("equals")) {
+            return proxy == args[0];
+        } else if (method.getName().equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        } else if (method.getName().equals("toString")) {
+            return "synthetic " + proxy.getClass().getInterfaces()[0].getSimpleName();
+        }
+        Class type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
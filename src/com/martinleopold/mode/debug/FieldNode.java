@@ -51,6 +51,32 @@ public class FieldNode extends VariableNode {
         this.obj = obj;
     }
 
+    /**
+     * Construct a {@link FieldNode} with a known type code and number of
+     * children.
+     *
+     * @param name the name
+     * @param type the type
+     * @param typeCode the type code (see {@link VariableNode#typeCode(String)})
+     * @param value the value
+     * @param valueChildCount the number of elements or fields of the value
+     * @param field the field
+     * @param obj a reference to the object containing the field
+     */
+    public FieldNode(String name, String type, int typeCode, Value value, int valueChildCount, Field field, ObjectReference obj) {
+        super(name, type, typeCode, value, valueChildCount);
+        this.field = field;
+        this.obj = obj;
+    }
+
+    @Override
+    public boolean update(VariableNode other) {
+        FieldNode node = (FieldNode) other;
+        field = node.field;
+        obj = node.obj;
+        return super.update(other);
+    }
+
     @Override
     public void setValue(Value value) {
         try {
@@ -60,6 +86,6 @@ public class FieldNode extends VariableNode {
         } catch (ClassNotLoadedException ex) {
             Logger.getLogger(FieldNode.class.getName()).log(Level.SEVERE, null, ex);
         }
-        this.value = value;
+        super.setValue(value); // updates the captured display data
     }
 }
@@ -20,6 +20,7 @@ package com.martinleopold.mode.debug;
 import com.sun.jdi.AbsentInformationException;
 import com.sun.jdi.Location;
 import com.sun.jdi.ReferenceType;
+import com.sun.jdi.ThreadReference;
 import com.sun.jdi.request.BreakpointRequest;
 import java.util.List;
 import java.util.ArrayList;
@@ -35,7 +36,8 @@ import java.util.logging.Logger;
 public class LineBreakpoint implements ClassLoadListener {
 
     protected Debugger dbg; // the debugger
-    protected LineID line, javaLine; // the line this breakpoint is set on in sketch space and java space.
+    protected TrackedLine line; // the line this breakpoint is set on in sketch space. follows edits
+    protected LineID javaLine; // the line this breakpoint is set on in java space
     protected Location location; // the location of this line in the corresponding class/type. needed to set the breakpoint
     protected BreakpointRequest bpr; // the request on the VM's event request manager
     protected ReferenceType theClass; // the class containing this breakpoint, null when not yet loaded
@@ -50,10 +52,15 @@ public class LineBreakpoint implements ClassLoadListener {
      * @param dbg the {@link Debugger}
      */
     public LineBreakpoint(LineID line, Debugger dbg) {
-        this.line = line;
-        line.startTracking(dbg.editor().getTab(line.fileName()).getDocument());
+        this.line = new TrackedLine(line);
+        this.line.startTracking(dbg.editor().getTab(line.fileName()).getDocument());
         this.dbg = dbg;
-        tryClass(dbg.getClass(className())); // the class might already be loaded
+        // the class might already be loaded. the line could be in a nested class
+        for (ReferenceType rt : dbg.getClassWithNested(className())) {
+            if (tryClass(rt)) {
+                break;
+            }
+        }
         set(); // activate the breakpoint (show highlight, attach if debugger is running)
     }
 
@@ -75,6 +82,16 @@ public class LineBreakpoint implements ClassLoadListener {
      * @return the line id
      */
     public LineID lineID() {
+        return line.lineID();
+    }
+
+    /**
+     * Get the tracked line this breakpoint is on. Used to listen for line
+     * number changes.
+     *
+     * @return the tracked line
+     */
+    public TrackedLine trackedLine() {
         return line;
     }
 
@@ -85,7 +102,17 @@ public class LineBreakpoint implements ClassLoadListener {
      * @return true if this breakpoint is on the given line
      */
     public boolean isOnLine(LineID testLine) {
-        return line.equals(testLine);
+        return line.lineID().equals(testLine);
+    }
+
+    /**
+     * Check if this breakpoint found its class and location in the current
+     * debuggee VM.
+     *
+     * @return true if bound to a class of the running VM
+     */
+    public boolean isBound() {
+        return theClass != null && dbg.vm() != null && theClass.virtualMachine() == dbg.vm();
     }
 
     /**
@@ -93,7 +120,19 @@ public class LineBreakpoint implements ClassLoadListener {
      * {@link BreakpointRequest}. VM needs to be paused.
      */
     protected void attach() {
-        if (!dbg.isPaused()) {
+        attach(null);
+    }
+
+    /**
+     * Attach this breakpoint to the VM. Creates and enables a
+     * {@link BreakpointRequest}. VM needs to be paused, or the given thread
+     * suspended, e.g. the thread loading the breakpoint's class.
+     *
+     * @param suspended a suspended thread that can't run into the breakpoint
+     * meanwhile, or null to require the debugger to be paused
+     */
+    protected void attach(ThreadReference suspended) {
+        if (!dbg.isPaused() && (suspended == null || !suspended.isSuspended())) {
             Logger.getLogger(LineBreakpoint.class.getName()).log(Level.WARNING, "can't attach breakpoint, debugger not paused");
             return;
         }
@@ -129,23 +168,44 @@ public class LineBreakpoint implements ClassLoadListener {
      */
     protected void set() {
         if (theClass == null) { // class not yet loaded, need to listen for class loads
-            dbg.addClassLoadListener(this); 
+            dbg.addClassLoadListener(line.fileName(), this); // only notified about classes of this breakpoint's tab
         }
-        dbg.editor().addBreakpointedLine(line);
+        dbg.editor().addBreakpointedLine(line.lineID());
         if (theClass != null && dbg.isPaused()) { // class is loaded
             attach();// immediately activate the breakpoint
         }
-        if (dbg.editor().isInCurrentTab(line)) {
+        if (dbg.editor().isInCurrentTab(line.lineID())) {
             dbg.editor().getSketch().setModified(true);
         }
     }
 
+    /**
+     * Resolve this breakpoint again, after its class was redefined. The old
+     * location belongs to the replaced code, so the request is deleted and the
+     * location is looked up for the current line. VM needs to be paused.
+     */
+    protected void rebind() {
+        detach();
+        theClass = null;
+        location = null;
+        for (ReferenceType rt : dbg.getClassWithNested(className())) {
+            if (tryClass(rt)) {
+                break;
+            }
+        }
+        if (theClass != null) {
+            attach();
+        } else {
+            dbg.addClassLoadListener(line.fileName(), this); // e.g. moved into a nested class that's not loaded yet
+        }
+    }
+
     /**
      * Remove this breakpoint. Clears the highlight and detaches the breakpoint
      * if the debugger is paused.
      */
     public void remove() {
-        dbg.removeClassLoadListener(this);
+        dbg.removeClassLoadListener(line.fileName(), this);
         //System.out.println("removing " + line.lineIdx());
         dbg.editor().removeBreakpointedLine(line.lineIdx());
         if (dbg.isPaused()) {
@@ -153,7 +213,7 @@ public class LineBreakpoint implements ClassLoadListener {
             detach();
         }
         line.stopTracking();
-        if (dbg.editor().isInCurrentTab(line)) {
+        if (dbg.editor().isInCurrentTab(line.lineID())) {
             dbg.editor().getSketch().setModified(true);
         }
     }
@@ -200,7 +260,7 @@ public class LineBreakpoint implements ClassLoadListener {
      */
     protected boolean tryClass(ReferenceType theClass) {
         if (theClass == null) return false;
-        javaLine = dbg.sketchToJavaLine(line); // find line in java space
+        javaLine = dbg.sketchToJavaLine(line.lineID()); // find line in java space
         if (javaLine == null) {
             Logger.getLogger(LineBreakpoint.class.getName()).log(Level.WARNING, "couldn't find line {0} in the java code", line);
         }
@@ -222,13 +282,17 @@ public class LineBreakpoint implements ClassLoadListener {
      * breakpoint to be attached, if its class was loaded.
      *
      * @param theClass the class that was just loaded.
+     * @param thread the thread that loaded the class, suspended
      */
     @Override
-    public void classLoaded(ReferenceType theClass) {
+    public void classLoaded(ReferenceType theClass, ThreadReference thread) {
+        if (isBound()) {
+            return; // already found our class in this session
+        }
         // check if our class is being loaded
-        if ( theClass.name().startsWith(className()) && tryClass(theClass) ) { // this includes nested classes e.g. MySketch$NestedClass
+        if (ClassRegistry.topLevelName(theClass.name()).equals(className()) && tryClass(theClass)) { // this includes nested classes e.g. MySketch$NestedClass
             //dbg.removeClassLoadListener(this); // we found it, no need to check any more classes as they are loaded
-            attach();
+            attach(thread);
         }
     }
 }
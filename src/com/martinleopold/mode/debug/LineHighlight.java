@@ -31,7 +31,7 @@ public class LineHighlight implements LineListener {
 
     protected DebugEditor editor; // the view, used for highlighting lines by setting a background color
     protected Color bgColor; // the background color for highlighting lines
-    protected LineID lineID; // the id of the line
+    protected TrackedLine line; // the line, follows edits
     protected String marker; //
     protected Color markerColor;
     protected int priority = 0;
@@ -54,11 +54,11 @@ public class LineHighlight implements LineListener {
      * @param editor the {@link DebugEditor}
      */
     public LineHighlight(LineID lineID, Color bgColor, DebugEditor editor) {
-        this.lineID = lineID;
+        this.line = new TrackedLine(lineID);
         this.bgColor = bgColor;
         this.editor = editor;
-        lineID.addListener(this);
-        lineID.startTracking(editor.getTab(lineID.fileName()).getDocument()); // TODO: overwrite a previous doc?
+        line.addListener(this);
+        line.startTracking(editor.getTab(lineID.fileName()).getDocument()); // TODO: overwrite a previous doc?
         paint(); // already checks if on current tab
         allHighlights.add(this);
     }
@@ -112,7 +112,7 @@ public class LineHighlight implements LineListener {
      * @return the line id
      */
     public LineID lineID() {
-        return lineID;
+        return line.lineID();
     }
 
     /**
@@ -131,7 +131,7 @@ public class LineHighlight implements LineListener {
      * @return true if this highlight is on the given line
      */
     public boolean isOnLine(LineID testLine) {
-        return lineID.equals(testLine);
+        return line.lineID().equals(testLine);
     }
 
     /**
@@ -143,7 +143,7 @@ public class LineHighlight implements LineListener {
      * @param newLineIdx the new line index (0-based)
      */
     @Override
-    public void lineChanged(LineID line, int oldLineIdx, int newLineIdx) {
+    public void lineChanged(TrackedLine line, int oldLineIdx, int newLineIdx) {
         // clear old line
         if (editor.isInCurrentTab(new LineID(line.fileName(), oldLineIdx))) {
             editor.textArea().clearLineBgColor(oldLineIdx);
@@ -152,7 +152,7 @@ public class LineHighlight implements LineListener {
 
         // paint new line
         // but only if it's on top -> fixes current line being hidden by breakpoint moving it down.
-        // lineChanged events seem to come in inverse order of startTracking the LineID. (and bp is created first...)
+        // lineChanged events seem to come in inverse order of startTracking the TrackedLine. (and bp is created first...)
         if (LineHighlight.isHighestPriority(this)) {
             paint();
         }
@@ -163,8 +163,8 @@ public class LineHighlight implements LineListener {
      * cleanup before the {@link LineHighlight} is discarded.
      */
     public void dispose() {
-        lineID.removeListener(this);
-        lineID.stopTracking();
+        line.removeListener(this);
+        line.stopTracking();
         allHighlights.remove(this);
     }
 
@@ -172,6 +172,7 @@ public class LineHighlight implements LineListener {
      * (Re-)paint this line highlight.
      */
     public void paint() {
+        LineID lineID = line.lineID();
         if (editor.isInCurrentTab(lineID)) {
             editor.textArea().setLineBgColor(lineID.lineIdx(), bgColor);
             if (marker != null) {
@@ -188,6 +189,7 @@ public class LineHighlight implements LineListener {
      * Clear this line highlight.
      */
     public void clear() {
+        LineID lineID = line.lineID();
         if (editor.isInCurrentTab(lineID)) {
             editor.textArea().clearLineBgColor(lineID.lineIdx());
             editor.textArea().clearGutterText(lineID.lineIdx());
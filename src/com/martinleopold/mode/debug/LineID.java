@@ -17,253 +17,153 @@
  */
 package com.martinleopold.mode.debug;
 
-import java.util.HashSet;
-import java.util.Set;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import javax.swing.event.DocumentEvent;
-import javax.swing.event.DocumentListener;
-import javax.swing.text.BadLocationException;
-import javax.swing.text.Document;
-import javax.swing.text.Element;
-import javax.swing.text.Position;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Describes an ID for a code line. Comprised of a file name and a (0-based)
- * line number. Can track changes to the line number due to text editing by
- * attaching a {@link Document}. Registered {@link LineListener}s are notified
- * of changes to the line number.
+ * line number. Immutable. File names are interned as int ids, so a line id
+ * can be packed into a single long (see {@link #key()}) and compared and
+ * hashed without touching strings. Use {@link TrackedLine} to follow a line
+ * while its document is edited.
  *
  * @author Martin Leopold <m@martinleopold.com>
  */
-public class LineID implements DocumentListener {
+public final class LineID {
 
-    protected String fileName; // the filename
-    protected int lineIdx; // the line number, 0-based
-    protected Document doc; // the Document to use for line number tracking
-    protected Position pos; // the Position acquired during line number tracking
-    protected Set<LineListener> listeners = new HashSet(); // listeners for line number changes
+    protected static final ConcurrentMap<String, Integer> fileIds = new ConcurrentHashMap(); // file name -> file id
+    protected static final List<String> fileNames = new CopyOnWriteArrayList(); // file id -> file name
+    protected final int fileId; // the interned file name
+    protected final int lineIdx; // the line number, 0-based
 
     public LineID(String fileName, int lineIdx) {
-        this.fileName = fileName;
-        this.lineIdx = lineIdx;
+        this(fileId(fileName), lineIdx);
     }
 
-    /**
-     * Get the file name of this line.
-     *
-     * @return the file name
-     */
-    public String fileName() {
-        return fileName;
+    protected LineID(int fileId, int lineIdx) {
+        this.fileId = fileId;
+        this.lineIdx = lineIdx;
     }
 
     /**
-     * Get the (0-based) line number of this line.
+     * Get the line id for a packed key.
      *
-     * @return the line index (i.e. line number, starting at 0)
+     * @param key a key as returned by {@link #key()}
+     * @return the line id
      */
-    public synchronized int lineIdx() {
-        return lineIdx;
-    }
-
-    @Override
-    public int hashCode() {
-        return toString().hashCode();
+    public static LineID fromKey(long key) {
+        return new LineID((int) (key >>> 32), (int) key);
     }
 
     /**
-     * Test whether this {@link LineID} is equal to another object. Two
-     * {@link LineID}'s are equal when both their fileName and lineNo are equal.
+     * Pack a file name and line number into a key, without creating a
+     * {@link LineID}.
      *
-     * @param obj the object to test for equality
-     * @return {@code true} if equal
+     * @param fileName the file name
+     * @param lineIdx the line index (0-based)
+     * @return the key, same as {@code new LineID(fileName, lineIdx).key()}
      */
-    @Override
-    public boolean equals(Object obj) {
-        if (obj == null) {
-            return false;
-        }
-        if (getClass() != obj.getClass()) {
-            return false;
-        }
-        final LineID other = (LineID) obj;
-        if ((this.fileName == null) ? (other.fileName != null) : !this.fileName.equals(other.fileName)) {
-            return false;
-        }
-        if (this.lineIdx != other.lineIdx) {
-            return false;
-        }
-        return true;
+    public static long key(String fileName, int lineIdx) {
+        return key(fileId(fileName), lineIdx);
     }
 
-    /**
-     * Output a string representation in the form fileName:lineIdx+1. Note this
-     * uses a 1-based line number as is customary for human-readable line
-     * numbers.
-     *
-     * @return the string representation of this line ID
-     */
-    @Override
-    public String toString() {
-        return fileName + ":" + (lineIdx + 1);
+    protected static long key(int fileId, int lineIdx) {
+        return ((long) fileId << 32) | (lineIdx & 0xFFFFFFFFL);
     }
 
-//    /**
-//     * Retrieve a copy of this line ID.
-//     *
-//     * @return the copy
-//     */
-//    @Override
-//    public LineID clone() {
-//        return new LineID(fileName, lineIdx);
-//    }
-
     /**
-     * Attach a {@link Document} to enable line number tracking when editing.
-     * The position to track is before the first non-whitespace character on the
-     * line. Edits happening before that position will cause the line number to
-     * update accordingly. Multiple {@link #startTracking} calls will replace
-     * the tracked document. Whoever wants a tracked line should track it and
-     * add itself as listener if necessary.
-     * ({@link LineHighlight}, {@link LineBreakpoint})
+     * Get the id of a file name. Assigns a new id to names not seen before.
      *
-     * @param doc the {@link Document} to use for line number tracking
-     */
-    public synchronized void startTracking(Document doc) {
-        //System.out.println("tracking: " + this);
-        if (doc == null) {
-            return; // null arg
-        }
-        if (doc == this.doc) {
-            return; // already tracking that doc
-        }
-        try {
-            Element line = doc.getDefaultRootElement().getElement(lineIdx);
-            if (line == null) {
-                return; // line doesn't exist
-            }
-            String lineText = doc.getText(line.getStartOffset(), line.getEndOffset() - line.getStartOffset());
-            // set tracking position at (=before) first non-white space character on line
-            pos = doc.createPosition(line.getStartOffset() + nonWhiteSpaceOffset(lineText));
-            this.doc = doc;
-            doc.addDocumentListener(this);
-        } catch (BadLocationException ex) {
-            Logger.getLogger(LineID.class.getName()).log(Level.SEVERE, null, ex);
-            pos = null;
-            this.doc = null;
-        }
-    }
-
-    /**
-     * Notify this {@link LineID} that it is no longer in use. Will stop
-     * position tracking. Call this when this {@link LineID} is no longer
-     * needed.
+     * @param fileName the file name
+     * @return the file id
      */
-    public synchronized void stopTracking() {
-        if (doc != null) {
-            doc.removeDocumentListener(this);
-            doc = null;
+    public static int fileId(String fileName) {
+        if (fileName == null) {
+            fileName = "";
         }
-    }
-
-    /**
-     * Update the tracked position. Will notify listeners if line number has
-     * changed.
-     */
-    protected synchronized void updatePosition() {
-        if (doc != null && pos != null) {
-            // track position
-            int offset = pos.getOffset();
-            int oldLineIdx = lineIdx;
-            lineIdx = doc.getDefaultRootElement().getElementIndex(offset); // offset to lineNo
-            if (lineIdx != oldLineIdx) {
-                for (LineListener l : listeners) {
-                    if (l != null) {
-                        l.lineChanged(this, oldLineIdx, lineIdx);
-                    } else {
-                        listeners.remove(l); // remove null listener
-                    }
+        Integer id = fileIds.get(fileName);
+        if (id == null) {
+            synchronized (fileNames) {
+                id = fileIds.get(fileName);
+                if (id == null) {
+                    id = fileNames.size();
+                    fileNames.add(fileName);
+                    fileIds.put(fileName, id);
                 }
             }
         }
+        return id;
     }
 
     /**
-     * Add listener to be notified when the line number changes.
+     * Get the file name of this line.
      *
-     * @param l the listener to add
+     * @return the file name
      */
-    public void addListener(LineListener l) {
-        listeners.add(l);
+    public String fileName() {
+        return fileNames.get(fileId);
     }
 
     /**
-     * Remove a listener for line number changes.
+     * Get the interned id of the file name of this line.
      *
-     * @param l the listener to remove
+     * @return the file id
      */
-    public void removeListener(LineListener l) {
-        listeners.remove(l);
+    public int fileId() {
+        return fileId;
     }
 
     /**
-     * Calculate the offset of the first non-whitespace character in a string.
+     * Get the (0-based) line number of this line.
      *
-     * @param str the string to examine
-     * @return offset of first non-whitespace character in str
+     * @return the line index (i.e. line number, starting at 0)
      */
-    protected static int nonWhiteSpaceOffset(String str) {
-        for (int i = 0; i < str.length(); i++) {
-            if (!Character.isWhitespace(str.charAt(i))) {
-                return i;
-            }
-        }
-        return str.length();
+    public int lineIdx() {
+        return lineIdx;
     }
 
     /**
-     * Called when the {@link Document} registered using {@link #startTracking}
-     * is edited. This happens when text is inserted or removed.
+     * Get this line id packed into a long. The file id is in the upper, the
+     * line index in the lower 32 bits, so keys of the same file sort by line.
      *
-     * @param de
+     * @return the key
      */
-    protected void editEvent(DocumentEvent de) {
-        //System.out.println("document edit @ " + de.getOffset());
-        if (de.getOffset() <= pos.getOffset()) {
-            updatePosition();
-            //System.out.println("updating, new line no: " + lineNo);
-        }
+    public long key() {
+        return key(fileId, lineIdx);
     }
 
-    /**
-     * {@link DocumentListener} callback. Called when text is inserted.
-     *
-     * @param de
-     */
     @Override
-    public void insertUpdate(DocumentEvent de) {
-        editEvent(de);
+    public int hashCode() {
+        return 31 * fileId + lineIdx;
     }
 
     /**
-     * {@link DocumentListener} callback. Called when text is removed.
+     * Test whether this {@link LineID} is equal to another object. Two
+     * {@link LineID}'s are equal when both their fileName and lineNo are equal.
      *
-     * @param de
+     * @param obj the object to test for equality
+     * @return {@code true} if equal
      */
     @Override
-    public void removeUpdate(DocumentEvent de) {
-        editEvent(de);
+    public boolean equals(Object obj) {
+        if (!(obj instanceof LineID)) {
+            return false;
+        }
+        final LineID other = (LineID) obj;
+        return this.fileId == other.fileId && this.lineIdx == other.lineIdx;
     }
 
     /**
-     * {@link DocumentListener} callback. Called when attributes are changed.
-     * Not used.
+     * Output a string representation in the form fileName:lineIdx+1. Note this
+     * uses a 1-based line number as is customary for human-readable line
+     * numbers.
      *
-     * @param de
+     * @return the string representation of this line ID
      */
     @Override
-    public void changedUpdate(DocumentEvent de) {
-        // not needed.
+    public String toString() {
+        return fileName() + ":" + (lineIdx + 1);
     }
 }
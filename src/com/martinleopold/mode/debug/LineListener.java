@@ -31,5 +31,5 @@ public interface LineListener {
      * @param oldLineIdx the old line index (0-based)
      * @param newLineIdx the new line index (0-based)
      */
-    void lineChanged(LineID line, int oldLineIdx, int newLineIdx);
+    void lineChanged(TrackedLine line, int oldLineIdx, int newLineIdx);
 }
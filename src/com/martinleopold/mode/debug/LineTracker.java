@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2015 Martin Leopold <m@martinleopold.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package com.martinleopold.mode.debug;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.Position;
+
+/**
+ * Tracks the lines of a tab while it is edited during a debug session. Maps
+ * line numbers the VM runs on (original, at compile time) to the current
+ * (runtime) line numbers in the editor, and back. Each original line is
+ * represented by a {@link Position} in the document, which the document
+ * keeps up to date on edits, so there is no per-line listener. Queries use a
+ * {@link Mapping} snapshot of all lines, rebuilt on the first query after an
+ * edit: original to runtime is an array lookup, runtime to original a binary
+ * search.
+ *
+ * @author Martin Leopold <m@martinleopold.com>
+ */
+public class LineTracker implements DocumentListener {
+
+    protected String fileName; // the tab's file name
+    protected Document doc; // the tab's document
+    protected Position[] lines; // tracked position on each original line, in document order
+    protected volatile int edits = 0; // number of edits since tracking started
+    protected volatile Mapping mapping; // snapshot of the current line numbers, null before the first edit
+
+    /**
+     * Start tracking the lines of a document.
+     *
+     * @param fileName the tab's file name
+     * @param doc the tab's document
+     */
+    public LineTracker(String fileName, Document doc) {
+        this.fileName = fileName;
+        this.doc = doc;
+        readLock();
+        try {
+            Element root = doc.getDefaultRootElement();
+            lines = new Position[root.getElementCount()];
+            for (int i = 0; i < lines.length; i++) {
+                Element line = root.getElement(i);
+                String lineText = doc.getText(line.getStartOffset(), line.getEndOffset() - line.getStartOffset());
+                // track the position before the first non-whitespace character, stay before the newline
+                int offset = line.getStartOffset() + TrackedLine.nonWhiteSpaceOffset(lineText);
+                lines[i] = doc.createPosition(Math.min(offset, line.getEndOffset() - 1));
+            }
+        } catch (BadLocationException ex) {
+            Logger.getLogger(LineTracker.class.getName()).log(Level.SEVERE, null, ex);
+            lines = new Position[0];
+        } finally {
+            readUnlock();
+        }
+        doc.addDocumentListener(this);
+    }
+
+    /**
+     * Get the file name of the tracked tab.
+     *
+     * @return the file name
+     */
+    public String fileName() {
+        return fileName;
+    }
+
+    /**
+     * Get the current line number of an original line.
+     *
+     * @param lineIdx the original line index (0-based)
+     * @return the current line index, or lineIdx if it is not tracked
+     */
+    public int originalToRuntime(int lineIdx) {
+        if (edits == 0 || lineIdx < 0 || lineIdx >= lines.length) {
+            return lineIdx; // nothing changed
+        }
+        return mapping().runtimeLines[lineIdx];
+    }
+
+    /**
+     * Get the original line number of a current line.
+     *
+     * @param lineIdx the current line index (0-based)
+     * @return the first original line that is now on the given line, or
+     * lineIdx if no original line is (e.g. the line was inserted)
+     */
+    public int runtimeToOriginal(int lineIdx) {
+        if (edits == 0) {
+            return lineIdx; // nothing changed
+        }
+        int[] runtimeLines = mapping().runtimeLines;
+        // the tracked positions stay in document order, so the runtime lines are sorted
+        int lo = 0;
+        int hi = runtimeLines.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (runtimeLines[mid] < lineIdx) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (lo < runtimeLines.length && runtimeLines[lo] == lineIdx) {
+            return lo;
+        }
+        return lineIdx;
+    }
+
+    /**
+     * Snapshot of the current line number of every original line, valid for
+     * a certain number of edits.
+     */
+    protected static class Mapping {
+
+        final int edits; // the edit count this snapshot was taken at
+        final int[] runtimeLines; // original line index -> runtime line index. non-decreasing
+
+        Mapping(int edits, int[] runtimeLines) {
+            this.edits = edits;
+            this.runtimeLines = runtimeLines;
+        }
+    }
+
+    /**
+     * Get an up to date snapshot of the mapping. Takes a new snapshot if the
+     * document was edited since the last one.
+     *
+     * @return the snapshot
+     */
+    protected Mapping mapping() {
+        Mapping m = mapping;
+        int currentEdits = edits;
+        if (m != null && m.edits == currentEdits) {
+            return m;
+        }
+        int[] runtimeLines = new int[lines.length];
+        readLock();
+        try {
+            Element root = doc.getDefaultRootElement();
+            for (int i = 0; i < lines.length; i++) {
+                runtimeLines[i] = root.getElementIndex(lines[i].getOffset());
+            }
+        } finally {
+            readUnlock();
+        }
+        m = new Mapping(currentEdits, runtimeLines);
+        mapping = m;
+        return m;
+    }
+
+    /**
+     * Get the number of edits since tracking started. Can be used to check if
+     * values derived from the mapping are still valid.
+     *
+     * @return the number of edits
+     */
+    public int edits() {
+        return edits;
+    }
+
+    /**
+     * Stop tracking.
+     */
+    public void dispose() {
+        doc.removeDocumentListener(this);
+    }
+
+    protected void readLock() {
+        if (doc instanceof AbstractDocument) {
+            ((AbstractDocument) doc).readLock();
+        }
+    }
+
+    protected void readUnlock() {
+        if (doc instanceof AbstractDocument) {
+            ((AbstractDocument) doc).readUnlock();
+        }
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent de) {
+        edits++; // only written on the document's (event dispatch) thread
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent de) {
+        edits++;
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent de) {
+        // attribute changes don't move lines
+    }
+}
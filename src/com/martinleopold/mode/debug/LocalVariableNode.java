@@ -52,6 +52,32 @@ public class LocalVariableNode extends VariableNode {
         this.frame = frame;
     }
 
+    /**
+     * Construct a {@link LocalVariableNode} with a known type code and number
+     * of children.
+     *
+     * @param name the name
+     * @param type the type
+     * @param typeCode the type code (see {@link VariableNode#typeCode(String)})
+     * @param value the value
+     * @param valueChildCount the number of elements or fields of the value
+     * @param var the local variable
+     * @param frame the stack frame containing the local variable
+     */
+    public LocalVariableNode(String name, String type, int typeCode, Value value, int valueChildCount, LocalVariable var, StackFrame frame) {
+        super(name, type, typeCode, value, valueChildCount);
+        this.var = var;
+        this.frame = frame;
+    }
+
+    @Override
+    public boolean update(VariableNode other) {
+        LocalVariableNode node = (LocalVariableNode) other;
+        var = node.var;
+        frame = node.frame; // the old frame is invalid after resuming
+        return super.update(other);
+    }
+
     @Override
     public void setValue(Value value) {
         try {
@@ -61,6 +87,6 @@ public class LocalVariableNode extends VariableNode {
         } catch (ClassNotLoadedException ex) {
             Logger.getLogger(LocalVariableNode.class.getName()).log(Level.SEVERE, null, ex);
         }
-        this.value = value;
+        super.setValue(value); // updates the captured display data
     }
 }
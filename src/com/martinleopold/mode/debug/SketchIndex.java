@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 Martin Leopold <m@martinleopold.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package com.martinleopold.mode.debug;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import processing.app.Sketch;
+import processing.app.SketchCode;
+
+/**
+ * Immutable index of a sketch's tabs as they were at build time. Maps file
+ * names to tabs, and lines of the preprocessed main class (sketchname.java)
+ * to lines of the .pde tabs using a binary search over the tabs'
+ * preprocessor offsets. Uses the build's {@link SourceMap} for exact mapping
+ * when there is one. Created by {@link DebugBuild}, so it is valid for the
+ * classes running in the debuggee.
+ *
+ * @author Martin Leopold <m@martinleopold.com>
+ */
+public final class SketchIndex {
+
+    protected final String mainFileName; // file name of the preprocessed main class, i.e. sketchname.java
+    protected final Map<String, SketchCode> tabs; // file name -> tab
+    protected final int[] pdeOffsets; // preprocessor offsets of the .pde tabs, ascending
+    protected final String[] pdeFileNames; // file names of the .pde tabs, same order as pdeOffsets
+    protected final Map<String, Integer> offsets; // file name of a .pde tab -> preprocessor offset
+    protected final SourceMap sourceMap; // exact line mapping of the .pde tabs, or null to use the offsets
+
+    /**
+     * Index a sketch. Needs to be called after preprocessing, so the tabs'
+     * preprocessor offsets are set.
+     *
+     * @param sketch the sketch
+     */
+    public SketchIndex(Sketch sketch) {
+        this(sketch, null);
+    }
+
+    /**
+     * Index a sketch, using a source map for translating lines of the .pde
+     * tabs. Needs to be called after preprocessing.
+     *
+     * @param sketch the sketch
+     * @param sourceMap the source map of the build, or null
+     */
+    public SketchIndex(Sketch sketch, SourceMap sourceMap) {
+        this.sourceMap = sourceMap;
+        mainFileName = sketch.getName() + ".java";
+        Map<String, SketchCode> tabMap = new HashMap();
+        List<SketchCode> pdeTabs = new ArrayList();
+        for (int i = 0; i < sketch.getCodeCount(); i++) {
+            SketchCode tab = sketch.getCode(i);
+            tabMap.put(tab.getFileName(), tab);
+            if (tab.isExtension("pde")) {
+                pdeTabs.add(tab);
+            }
+        }
+        tabs = Collections.unmodifiableMap(tabMap);
+        // .pde tabs are concatenated in tab order, so the offsets are ascending
+        pdeOffsets = new int[pdeTabs.size()];
+        pdeFileNames = new String[pdeTabs.size()];
+        Map<String, Integer> offsetMap = new HashMap();
+        for (int i = 0; i < pdeTabs.size(); i++) {
+            pdeOffsets[i] = pdeTabs.get(i).getPreprocOffset();
+            pdeFileNames[i] = pdeTabs.get(i).getFileName();
+            offsetMap.put(pdeFileNames[i], pdeOffsets[i]);
+        }
+        offsets = Collections.unmodifiableMap(offsetMap);
+    }
+
+    /**
+     * Get a tab by its file name.
+     *
+     * @param fileName the file name
+     * @return the tab or null if not found
+     */
+    public SketchCode getTab(String fileName) {
+        return tabs.get(fileName);
+    }
+
+    /**
+     * Get the file name of the preprocessed main class.
+     *
+     * @return sketchname.java
+     */
+    public String mainFileName() {
+        return mainFileName;
+    }
+
+    /**
+     * Translate a line from java space to sketch space, as of build time.
+     *
+     * @param javaLine the java line id
+     * @return the corresponding sketch line id or null if failed to translate
+     */
+    public LineID javaToSketchLine(LineID javaLine) {
+        SketchCode tab = tabs.get(javaLine.fileName());
+        if (tab != null && tab.isExtension("java")) {
+            return javaLine; // pure java tab, 1:1
+        }
+        if (!javaLine.fileName().equals(mainFileName)) {
+            return null;
+        }
+        if (sourceMap != null) {
+            return sourceMap.javaToSketchLine(javaLine.lineIdx());
+        }
+        // find the last .pde tab with an offset not greater than the java line
+        int lineIdx = javaLine.lineIdx();
+        int lo = 0;
+        int hi = pdeOffsets.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (pdeOffsets[mid] <= lineIdx) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int i = lo - 1;
+        if (i < 0) {
+            return null;
+        }
+        return new LineID(pdeFileNames[i], lineIdx - pdeOffsets[i]);
+    }
+
+    /**
+     * Translate a line from sketch space to java space, as of build time.
+     *
+     * @param sketchLine the sketch line id
+     * @return the corresponding java line id or null if failed to translate
+     */
+    public LineID sketchToJavaLine(LineID sketchLine) {
+        SketchCode tab = tabs.get(sketchLine.fileName());
+        if (tab == null) {
+            return null;
+        }
+        if (tab.isExtension("java")) {
+            return sketchLine; // pure java tab, 1:1
+        }
+        if (sourceMap != null) {
+            int javaLineIdx = sourceMap.sketchToJavaLine(sketchLine);
+            if (javaLineIdx >= 0) {
+                return new LineID(mainFileName, javaLineIdx);
+            }
+        }
+        Integer offset = offsets.get(sketchLine.fileName());
+        if (offset == null) {
+            return null;
+        }
+        // the .pde tabs are in sketchname.java, just add the tab's offset
+        return new LineID(mainFileName, sketchLine.lineIdx() + offset);
+    }
+}
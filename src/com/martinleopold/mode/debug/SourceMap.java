@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2015 Martin Leopold <m@martinleopold.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package com.martinleopold.mode.debug;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import processing.app.Sketch;
+import processing.app.SketchCode;
+
+/**
+ * Exact line and column mapping between the .pde tabs of a sketch and the
+ * preprocessed main class (sketchname.java). Built by aligning the lines of
+ * each tab with the generated source, so lines the preprocessor inserts or
+ * rewrites don't shift the mapping. Written by {@link DebugBuild} next to the
+ * generated source as a compact binary file, and read in one go when loaded.
+ * Lookups read from int tables in constant time. Immutable.
+ * <p>
+ * File layout (big endian): magic, version, tab count, for each tab its
+ * name (modified UTF-8) and line count, java line count, padding to 4 bytes,
+ * then the sketch to java table (java line and column per tab line, tabs in
+ * order) and the java to sketch table (tab index, line and column per java
+ * line, tab index -1 for lines not from a tab).
+ *
+ * @author Martin Leopold <m@martinleopold.com>
+ */
+public final class SourceMap {
+
+    public static final String EXTENSION = ".srcmap"; // file extension of source map files
+    protected static final int MAGIC = 0x534D4150; // "SMAP"
+    protected static final int VERSION = 1;
+    protected static final int SEARCH_WINDOW = 16; // how far ahead to look for a tab line in the generated source
+    protected final String[] tabNames; // file names of the .pde tabs, in tab order
+    protected final int[] tabStarts; // index of each tab's first line in sketchToJava, in lines
+    protected final int[] tabLineCounts; // number of lines of each tab
+    protected final Map<String, Integer> tabIndices; // file name -> tab index
+    protected final int javaLineCount; // number of lines of the generated source
+    protected final IntBuffer sketchToJava; // java line, java column per tab line
+    protected final IntBuffer javaToSketch; // tab index, line, column per java line
+
+    protected SourceMap(String[] tabNames, int[] tabLineCounts, int javaLineCount, IntBuffer sketchToJava, IntBuffer javaToSketch) {
+        this.tabNames = tabNames;
+        this.tabLineCounts = tabLineCounts;
+        this.javaLineCount = javaLineCount;
+        this.sketchToJava = sketchToJava;
+        this.javaToSketch = javaToSketch;
+        tabStarts = new int[tabNames.length];
+        tabIndices = new HashMap();
+        int start = 0;
+        for (int i = 0; i < tabNames.length; i++) {
+            tabStarts[i] = start;
+            start += tabLineCounts[i];
+            tabIndices.put(tabNames[i], i);
+        }
+    }
+
+    /**
+     * Create a source map by aligning the lines of a sketch's .pde tabs with
+     * the preprocessed main class. Needs to be called after preprocessing.
+     * Each tab line is expected on the line following the previous match. If
+     * it isn't there, it's searched for a few lines ahead (the preprocessor
+     * inserted lines). If it's not found at all, the preprocessor rewrote it,
+     * and it's mapped to the expected line.
+     *
+     * @param sketch the sketch
+     * @param javaLines the lines of the preprocessed main class
+     * @return the source map
+     */
+    public static SourceMap create(Sketch sketch, List<String> javaLines) {
+        List<SketchCode> pdeTabs = new ArrayList();
+        int lineCount = 0;
+        for (int i = 0; i < sketch.getCodeCount(); i++) {
+            SketchCode tab = sketch.getCode(i);
+            if (tab.isExtension("pde")) {
+                pdeTabs.add(tab);
+                lineCount += lines(tab.getProgram()).length;
+            }
+        }
+        String[] tabNames = new String[pdeTabs.size()];
+        int[] tabLineCounts = new int[pdeTabs.size()];
+        int[] s2j = new int[lineCount * 2];
+        int[] j2s = new int[javaLines.size() * 3];
+        for (int j = 0; j < javaLines.size(); j++) {
+            j2s[j * 3] = -1;
+        }
+        String[] normalizedJava = new String[javaLines.size()];
+        for (int j = 0; j < javaLines.size(); j++) {
+            normalizedJava[j] = normalize(javaLines.get(j));
+        }
+
+        int s = 0; // current entry in s2j
+        int cursor = pdeTabs.isEmpty() ? 0 : pdeTabs.get(0).getPreprocOffset(); // expected java line of the next tab line
+        for (int t = 0; t < pdeTabs.size(); t++) {
+            SketchCode tab = pdeTabs.get(t);
+            String[] lines = lines(tab.getProgram());
+            tabNames[t] = tab.getFileName();
+            tabLineCounts[t] = lines.length;
+            for (int i = 0; i < lines.length; i++) {
+                int javaLine = find(normalize(lines[i]), normalizedJava, cursor);
+                if (javaLine < 0) {
+                    javaLine = cursor; // rewritten by the preprocessor
+                }
+                int javaColumn = javaLine < javaLines.size() ? TrackedLine.nonWhiteSpaceOffset(javaLines.get(javaLine)) : 0;
+                s2j[s++] = javaLine;
+                s2j[s++] = javaColumn;
+                if (javaLine < javaLines.size() && j2s[javaLine * 3] < 0) { // first tab line mapped to a java line wins
+                    j2s[javaLine * 3] = t;
+                    j2s[javaLine * 3 + 1] = i;
+                    j2s[javaLine * 3 + 2] = TrackedLine.nonWhiteSpaceOffset(lines[i]);
+                }
+                cursor = javaLine + 1;
+            }
+        }
+        return new SourceMap(tabNames, tabLineCounts, javaLines.size(), IntBuffer.wrap(s2j), IntBuffer.wrap(j2s));
+    }
+
+    /**
+     * Find a (normalized) tab line in the generated source, starting at the
+     * expected line. Lines without content (blank lines, braces) are not
+     * searched for, since they would match anywhere.
+     *
+     * @param line the normalized tab line
+     * @param javaLines the normalized java lines
+     * @param expected the expected java line
+     * @return the index of the java line, or -1 if not found
+     */
+    protected static int find(String line, String[] javaLines, int expected) {
+        if (expected < javaLines.length && javaLines[expected].equals(line)) {
+            return expected;
+        }
+        if (line.length() < 3) {
+            return -1;
+        }
+        int end = Math.min(javaLines.length, expected + SEARCH_WINDOW);
+        for (int j = expected + 1; j < end; j++) {
+            if (javaLines[j].equals(line)) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Remove all whitespace from a line, so indentation changes by the
+     * preprocessor don't prevent a match.
+     *
+     * @param line the line
+     * @return the line without whitespace
+     */
+    protected static String normalize(String line) {
+        StringBuilder sb = new StringBuilder(line.length());
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    protected static String[] lines(String text) {
+        return text.split("\n", -1);
+    }
+
+    /**
+     * Write this source map to a file.
+     *
+     * @param file the file to write to
+     * @throws IOException if writing failed
+     */
+    public void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(tabNames.length);
+            for (int i = 0; i < tabNames.length; i++) {
+                out.writeUTF(tabNames[i]);
+                out.writeInt(tabLineCounts[i]);
+            }
+            out.writeInt(javaLineCount);
+            while (out.size() % 4 != 0) {
+                out.writeByte(0); // align the tables
+            }
+            for (int i = 0; i < sketchToJava.limit(); i++) {
+                out.writeInt(sketchToJava.get(i));
+            }
+            for (int i = 0; i < javaToSketch.limit(); i++) {
+                out.writeInt(javaToSketch.get(i));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Load a source map from a file. The file is read into memory, not
+     * mapped, since it's rewritten in place by later builds while the map
+     * may still be in use.
+     *
+     * @param file the file to load
+     * @return the source map
+     * @throws IOException if the file couldn't be read or isn't a source map
+     */
+    public static SourceMap load(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        try {
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                throw new IOException("not a source map: " + file);
+            }
+            int tabCount = buf.getInt();
+            String[] tabNames = new String[tabCount];
+            int[] tabLineCounts = new int[tabCount];
+            int lineCount = 0;
+            for (int i = 0; i < tabCount; i++) {
+                byte[] name = new byte[buf.getShort() & 0xFFFF];
+                buf.get(name);
+                tabNames[i] = new String(name, "UTF-8");
+                tabLineCounts[i] = buf.getInt();
+                lineCount += tabLineCounts[i];
+            }
+            int javaLineCount = buf.getInt();
+            buf.position((buf.position() + 3) & ~3);
+            IntBuffer sketchToJava = table(buf, lineCount * 2);
+            IntBuffer javaToSketch = table(buf, javaLineCount * 3);
+            return new SourceMap(tabNames, tabLineCounts, javaLineCount, sketchToJava, javaToSketch);
+        } catch (RuntimeException ex) { // buffer under- or overflow
+            throw new IOException("corrupt source map: " + file, ex);
+        }
+    }
+
+    /**
+     * Read a table of ints at the current position of a buffer and advance
+     * past it.
+     */
+    protected static IntBuffer table(ByteBuffer buf, int length) {
+        int[] table = new int[length];
+        buf.asIntBuffer().get(table);
+        buf.position(buf.position() + length * 4);
+        return IntBuffer.wrap(table);
+    }
+
+    /**
+     * Translate a line of the preprocessed main class to a .pde tab line.
+     *
+     * @param javaLineIdx the java line index (0-based)
+     * @return the sketch line, or null if the java line isn't from a tab
+     */
+    public LineID javaToSketchLine(int javaLineIdx) {
+        if (javaLineIdx < 0 || javaLineIdx >= javaLineCount) {
+            return null;
+        }
+        int t = javaToSketch.get(javaLineIdx * 3);
+        if (t < 0) {
+            return null;
+        }
+        return new LineID(tabNames[t], javaToSketch.get(javaLineIdx * 3 + 1));
+    }
+
+    /**
+     * Get the column of the first non-whitespace character of the tab line a
+     * java line was generated from.
+     *
+     * @param javaLineIdx the java line index (0-based)
+     * @return the column in the tab line, or -1 if the java line isn't from a
+     * tab
+     */
+    public int sketchColumn(int javaLineIdx) {
+        if (javaLineIdx < 0 || javaLineIdx >= javaLineCount || javaToSketch.get(javaLineIdx * 3) < 0) {
+            return -1;
+        }
+        return javaToSketch.get(javaLineIdx * 3 + 2);
+    }
+
+    /**
+     * Translate a .pde tab line to a line of the preprocessed main class.
+     *
+     * @param sketchLine the sketch line
+     * @return the java line index (0-based), or -1 if the line isn't in this
+     * map
+     */
+    public int sketchToJavaLine(LineID sketchLine) {
+        int i = entry(sketchLine);
+        return i < 0 ? -1 : sketchToJava.get(i * 2);
+    }
+
+    /**
+     * Get the column of the first non-whitespace character of the java line
+     * generated from a tab line.
+     *
+     * @param sketchLine the sketch line
+     * @return the column in the java line, or -1 if the line isn't in this
+     * map
+     */
+    public int javaColumn(LineID sketchLine) {
+        int i = entry(sketchLine);
+        return i < 0 ? -1 : sketchToJava.get(i * 2 + 1);
+    }
+
+    protected int entry(LineID sketchLine) {
+        Integer t = tabIndices.get(sketchLine.fileName());
+        if (t == null || sketchLine.lineIdx() < 0 || sketchLine.lineIdx() >= tabLineCounts[t]) {
+            return -1;
+        }
+        return tabStarts[t] + sketchLine.lineIdx();
+    }
+}
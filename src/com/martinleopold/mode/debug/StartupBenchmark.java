@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2015 Martin Leopold <m@martinleopold.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package com.martinleopold.mode.debug;
+
+import com.sun.jdi.Location;
+import com.sun.jdi.Method;
+import com.sun.jdi.ReferenceType;
+import com.sun.jdi.VirtualMachine;
+import com.sun.jdi.event.BreakpointEvent;
+import com.sun.jdi.event.ClassPrepareEvent;
+import com.sun.jdi.event.Event;
+import com.sun.jdi.event.EventSet;
+import com.sun.jdi.event.VMDeathEvent;
+import com.sun.jdi.event.VMDisconnectEvent;
+import com.sun.jdi.event.VMStartEvent;
+import com.sun.jdi.request.BreakpointRequest;
+import com.sun.jdi.request.ClassPrepareRequest;
+import com.sun.jdi.request.EventRequest;
+import com.sun.jdi.request.EventRequestManager;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures debuggee startup with and without the class data sharing archive
+ * (see {@link CDSArchive}). Builds the editor's sketch, generates the archive
+ * for its classpath if there is none, then launches the sketch a few times
+ * each way, alternating. Measures the time from launching to the VMStartEvent
+ * and to the first breakpoint, at the start of setup() (or draw() if there's
+ * no setup()). Prints the results to the console. Doesn't touch the debug
+ * session, but switches class data sharing off and on while running.
+ *
+ * @author Martin Leopold <m@martinleopold.com>
+ */
+public class StartupBenchmark implements Runnable {
+
+    public static final int RUNS = 5; // launches with and without the archive each
+    public static final long LAUNCH_TIMEOUT = 30000; // ms to wait for a launch to reach the breakpoint
+    protected DebugEditor editor; // the editor of the sketch to launch
+
+    /**
+     * Create a benchmark for a sketch.
+     *
+     * @param editor the editor of the sketch. Its text should be stored in
+     * the sketch, i.e. call prepareRun() first
+     */
+    public StartupBenchmark(DebugEditor editor) {
+        this.editor = editor;
+    }
+
+    /**
+     * Run the benchmark. Blocks until done, don't call on the event dispatch
+     * thread.
+     */
+    @Override
+    public void run() {
+        CDSArchive cds = editor.mode().getCDSArchive();
+        if (!CDSArchive.isSupported()) {
+            System.out.println("startup benchmark: class data sharing needs Java " + CDSArchive.MIN_JAVA_VERSION + " or later");
+            return;
+        }
+        boolean enabled = cds.isEnabled();
+        try {
+            DebugBuild build = new DebugBuild(editor.getSketch());
+            BuildScheduler scheduler = editor.buildScheduler();
+            scheduler.cancel();
+            String mainClassName;
+            synchronized (scheduler.buildLock()) {
+                mainClassName = build.build(false);
+            }
+            if (mainClassName == null) {
+                System.out.println("startup benchmark: the sketch didn't build");
+                return;
+            }
+            if (!cds.prepare(new DebugRunner(build, editor).getMachineParams())) {
+                System.out.println("startup benchmark: no class data sharing archive for the sketch's classpath");
+                return;
+            }
+            Result with = new Result();
+            Result without = new Result();
+            launch(build, mainClassName); // not counted, fills the file system cache
+            for (int i = 0; i < RUNS; i++) {
+                cds.setEnabled(true);
+                with.add(launch(build, mainClassName), true);
+                cds.setEnabled(false);
+                without.add(launch(build, mainClassName), false);
+            }
+            System.out.println("startup of " + mainClassName + ", " + RUNS + " launches each:");
+            System.out.println("  with archive:    " + with);
+            System.out.println("  without archive: " + without);
+        } catch (Exception ex) {
+            System.out.println("startup benchmark failed: " + ex.getMessage());
+            Logger.getLogger(StartupBenchmark.class.getName()).log(Level.SEVERE, "benchmark failed", ex);
+        } finally {
+            cds.setEnabled(enabled);
+        }
+    }
+
+    /**
+     * Startup times of one launch.
+     */
+    protected static class Launch {
+
+        protected long startNanos; // time to the VMStartEvent
+        protected long breakpointNanos; // time to the first breakpoint
+        protected boolean classDataSharing; // true if launched with an archive
+    }
+
+    /**
+     * Startup times of the launches one way.
+     */
+    protected static class Result {
+
+        protected int launches = 0; // number of launches
+        protected long startNanos = 0; // total time to the VMStartEvent
+        protected long breakpointNanos = 0; // total time to the first breakpoint
+        protected long minBreakpointNanos = Long.MAX_VALUE; // fastest time to the first breakpoint
+
+        /**
+         * Add a launch.
+         *
+         * @param launch the launch
+         * @param classDataSharing whether it was meant to use the archive
+         * @throws Exception if it didn't
+         */
+        protected void add(Launch launch, boolean classDataSharing) throws Exception {
+            if (launch.classDataSharing != classDataSharing) {
+                throw new Exception("launched " + (classDataSharing ? "without" : "with") + " the archive");
+            }
+            launches++;
+            startNanos += launch.startNanos;
+            breakpointNanos += launch.breakpointNanos;
+            minBreakpointNanos = Math.min(minBreakpointNanos, launch.breakpointNanos);
+        }
+
+        @Override
+        public String toString() {
+            return "VMStartEvent avg " + startNanos / launches / 1000000 + " ms, first breakpoint avg " + breakpointNanos / launches / 1000000 + " ms (min " + minBreakpointNanos / 1000000 + " ms)";
+        }
+    }
+
+    /**
+     * Launch the sketch, run it to the first breakpoint and kill it.
+     *
+     * @param build the build
+     * @param mainClassName the name of the sketch's main class
+     * @return the startup times
+     * @throws Exception if the launch failed or timed out
+     */
+    protected Launch launch(DebugBuild build, String mainClassName) throws Exception {
+        DebugRunner runner = new DebugRunner(build, editor);
+        Launch launch = new Launch();
+        long start = System.nanoTime();
+        if (!runner.launchVirtualMachine(false) || runner.vm() == null) {
+            throw new Exception("launch failed");
+        }
+        launch.classDataSharing = runner.isClassDataSharing();
+        VirtualMachine vm = runner.vm();
+        try {
+            EventRequestManager mgr = vm.eventRequestManager();
+            ClassPrepareRequest cpr = mgr.createClassPrepareRequest();
+            cpr.addClassFilter(mainClassName);
+            cpr.setSuspendPolicy(EventRequest.SUSPEND_ALL);
+            cpr.enable();
+            long deadline = System.currentTimeMillis() + LAUNCH_TIMEOUT;
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new Exception("no breakpoint within " + LAUNCH_TIMEOUT + " ms");
+                }
+                EventSet es = vm.eventQueue().remove(remaining);
+                if (es == null) {
+                    continue;
+                }
+                for (Event e : es) {
+                    if (e instanceof VMStartEvent) {
+                        launch.startNanos = System.nanoTime() - start;
+                    } else if (e instanceof ClassPrepareEvent) {
+                        mgr.deleteEventRequest(cpr);
+                        BreakpointRequest bpr = mgr.createBreakpointRequest(firstLine(((ClassPrepareEvent) e).referenceType()));
+                        bpr.setSuspendPolicy(EventRequest.SUSPEND_ALL);
+                        bpr.enable();
+                    } else if (e instanceof BreakpointEvent) {
+                        launch.breakpointNanos = System.nanoTime() - start;
+                        return launch;
+                    } else if (e instanceof VMDeathEvent || e instanceof VMDisconnectEvent) {
+                        throw new Exception("the sketch exited before the breakpoint");
+                    }
+                }
+                es.resume();
+            }
+        } finally {
+            runner.close();
+        }
+    }
+
+    /**
+     * Get the location to break at: the start of setup(), or of draw() if
+     * the sketch has no setup().
+     *
+     * @param rt the sketch's main class
+     * @return the location
+     * @throws Exception if the sketch has neither
+     */
+    protected static Location firstLine(ReferenceType rt) throws Exception {
+        for (String name : new String[]{"setup", "draw"}) {
+            List<Method> methods = rt.methodsByName(name, "()V");
+            if (!methods.isEmpty() && methods.get(0).location() != null) {
+                return methods.get(0).location();
+            }
+        }
+        throw new Exception("the sketch has no setup() or draw()");
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 Martin Leopold <m@martinleopold.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package com.martinleopold.mode.debug;
+
+import com.sun.jdi.Field;
+import com.sun.jdi.ReferenceType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable metadata of a class in the debuggee VM: its fields and their type
+ * names and type codes. The shape of a class doesn't change while it is
+ * loaded, so {@link Debugger} caches one of these per {@link ReferenceType}
+ * and only drops it when the class is redefined or the VM disconnects.
+ *
+ * @author Martin Leopold <m@martinleopold.com>
+ */
+public final class TypeInfo {
+
+    protected final ReferenceType type;
+    protected final String name; // fully qualified class name
+    protected final List<Field> visibleFields; // declared and inherited fields
+    protected final List<Field> declaredFields; // fields declared in this class
+    protected final List<Field> inheritedFields; // visible fields declared in a superclass
+    protected final Map<Field, String> typeNames; // field -> type name
+    protected final Map<Field, Integer> typeCodes; // field -> VariableNode type code
+
+    /**
+     * Query the metadata of a class from the VM.
+     *
+     * @param type the class
+     */
+    public TypeInfo(ReferenceType type) {
+        this.type = type;
+        name = type.name();
+        visibleFields = Collections.unmodifiableList(new ArrayList(type.visibleFields()));
+        declaredFields = Collections.unmodifiableList(new ArrayList(type.fields()));
+        List<Field> inherited = new ArrayList(visibleFields);
+        inherited.removeAll(declaredFields);
+        inheritedFields = Collections.unmodifiableList(inherited);
+
+        Map<Field, String> names = new HashMap();
+        Map<Field, Integer> codes = new HashMap();
+        for (Field f : visibleFields) {
+            String typeName = f.typeName();
+            names.put(f, typeName);
+            codes.put(f, VariableNode.typeCode(typeName));
+        }
+        typeNames = Collections.unmodifiableMap(names);
+        typeCodes = Collections.unmodifiableMap(codes);
+    }
+
+    public ReferenceType type() {
+        return type;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public List<Field> visibleFields() {
+        return visibleFields;
+    }
+
+    public List<Field> declaredFields() {
+        return declaredFields;
+    }
+
+    public List<Field> inheritedFields() {
+        return inheritedFields;
+    }
+
+    /**
+     * Get the fields to show for an instance of this class.
+     *
+     * @param includeInherited true to include fields declared in superclasses
+     * @return the visible or the declared fields
+     */
+    public List<Field> fields(boolean includeInherited) {
+        return includeInherited ? visibleFields : declaredFields;
+    }
+
+    /**
+     * Get the type name of a field.
+     *
+     * @param f a visible field of this class
+     * @return the type name
+     */
+    public String typeName(Field f) {
+        String typeName = typeNames.get(f);
+        return typeName != null ? typeName : f.typeName();
+    }
+
+    /**
+     * Get the {@link VariableNode} type code of a field.
+     *
+     * @param f a visible field of this class
+     * @return one of the VariableNode TYPE_ constants
+     */
+    public int typeCode(Field f) {
+        Integer code = typeCodes.get(f);
+        return code != null ? code : VariableNode.typeCode(typeName(f));
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2012 Martin Leopold <m@martinleopold.com>
+ * Copyright (C) 2015 Martin Leopold <m@martinleopold.com>
  *
  * This program is free software; you can redistribute it and/or modify it under
  * the terms of the GNU General Public License as published by the Free Software
@@ -20,19 +20,28 @@ package com.martinleopold.mode.debug;
 import com.sun.jdi.VMDisconnectedException;
 import com.sun.jdi.event.EventQueue;
 import com.sun.jdi.event.EventSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Reader Thread for VM Events. Constantly monitors a VMs EventQueue for new
- * events and forwards them to an VMEventListener.
+ * events and hands them to a bounded queue. A separate dispatch thread takes
+ * them from there and forwards them to an object implementing
+ * {@link VMEventListener}, in order.
  *
  * @author Martin Leopold <m@martinleopold.com>
  */
 public class VMEventReader extends Thread {
 
+    public static final int QUEUE_CAPACITY = 64; // max. number of event sets waiting for dispatch
     EventQueue eventQueue;
     VMEventListener listener;
+    protected BlockingQueue<EventSet> pending = new ArrayBlockingQueue(QUEUE_CAPACITY); // event sets read but not yet dispatched
+    protected Dispatcher dispatcher = new Dispatcher(); // the consumer of pending
+    protected volatile boolean reading = false; // true while this thread is reading from the event queue
 
     /**
      * Construct a VMEventReader. Needs to be kicked off with start() once
@@ -48,21 +57,71 @@ public class VMEventReader extends Thread {
         this.listener = listener;
     }
 
+    @Override
+    public synchronized void start() {
+        reading = true;
+        dispatcher.start();
+        super.start();
+    }
+
     @Override
     public void run() {
         try {
             while (true) {
                 EventSet eventSet = eventQueue.remove();
-                listener.vmEvent(eventSet);
-                /*
-                 * for (Event e : eventSet) { System.out.println("VM Event: " +
-                 * e.toString()); }
-                 */
+                pending.put(eventSet); // blocks when the dispatcher is too far behind
             }
         } catch (VMDisconnectedException e) {
             Logger.getLogger(VMEventReader.class.getName()).log(Level.INFO, "VMEventReader quit on VM disconnect");
+        } catch (InterruptedException e) {
+            Logger.getLogger(VMEventReader.class.getName()).log(Level.INFO, "VMEventReader interrupted");
         } catch (Exception e) {
             Logger.getLogger(VMEventReader.class.getName()).log(Level.SEVERE, "VMEventReader quit", e);
+        } finally {
+            reading = false; // the dispatcher will quit once pending is drained
+        }
+    }
+
+    /**
+     * Dispatch thread. Single consumer of the pending event sets, calls
+     * {@link VMEventListener#vmEvent} for each of them.
+     */
+    protected class Dispatcher extends Thread {
+
+        public Dispatcher() {
+            super("VM Event Dispatch Thread");
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (reading || !pending.isEmpty()) {
+                    EventSet eventSet = pending.poll(100, TimeUnit.MILLISECONDS);
+                    if (eventSet != null) {
+                        dispatch(eventSet);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Logger.getLogger(VMEventReader.class.getName()).log(Level.INFO, "VM event dispatch interrupted");
+            } finally {
+                VMEventReader.this.interrupt(); // don't leave the reader blocked on a full queue
+            }
+        }
+
+        /**
+         * Forward an event set to the listener. Failures are logged, so the
+         * following events are still dispatched.
+         *
+         * @param eventSet the event set
+         */
+        protected void dispatch(EventSet eventSet) {
+            try {
+                listener.vmEvent(eventSet);
+            } catch (VMDisconnectedException e) {
+                Logger.getLogger(VMEventReader.class.getName()).log(Level.INFO, "VM disconnected during event dispatch");
+            } catch (Exception e) {
+                Logger.getLogger(VMEventReader.class.getName()).log(Level.SEVERE, "VM event dispatch failed", e);
+            }
         }
     }
 }
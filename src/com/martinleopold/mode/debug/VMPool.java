@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2015 Martin Leopold <m@martinleopold.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package com.martinleopold.mode.debug;
+
+import com.sun.jdi.Location;
+import com.sun.jdi.Method;
+import com.sun.jdi.ReferenceType;
+import com.sun.jdi.VMDisconnectedException;
+import com.sun.jdi.VirtualMachine;
+import com.sun.jdi.event.BreakpointEvent;
+import com.sun.jdi.event.ClassPrepareEvent;
+import com.sun.jdi.event.Event;
+import com.sun.jdi.event.EventSet;
+import com.sun.jdi.event.VMDeathEvent;
+import com.sun.jdi.event.VMDisconnectEvent;
+import com.sun.jdi.event.VMStartEvent;
+import com.sun.jdi.request.BreakpointRequest;
+import com.sun.jdi.request.ClassPrepareRequest;
+import com.sun.jdi.request.EventRequest;
+import com.sun.jdi.request.EventRequestManager;
+import java.io.File;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import processing.app.RunnerListener;
+import processing.app.Sketch;
+import processing.app.SketchException;
+
+/**
+ * Keeps one debuggee VM launched ahead of time, so starting to debug doesn't
+ * wait for the VM to boot. The VM is launched with the command line of the
+ * last build (classpath including the bin folder, sketch arguments) and run
+ * up to the entry of PApplet.main, i.e. with JDWP attached and Processing
+ * core loaded, but before any sketch class is loaded. A debug session adopts
+ * it if it's ready and its key matches (see {@link DebugRunner#poolKey()}),
+ * the sketch classes are then loaded from the freshly written bin folder.
+ * Otherwise the session launches a VM as usual. Sketches with their own main() aren't pooled, they never reach
+ * PApplet.main. Held by {@link DebugMode}, disabled by default. Thread safe.
+ *
+ * @author Martin Leopold <m@martinleopold.com>
+ */
+public class VMPool {
+
+    public static final String ENTRY_CLASS = "processing.core.PApplet"; // main class of the debuggee, runs the sketch
+    public static final long WARMUP_TIMEOUT = 30000; // ms to wait for a launched VM to reach PApplet.main
+    protected volatile boolean enabled = false; // true if keeping a VM ready
+    protected WarmVM pooled; // the VM kept ready, null if none
+
+    public VMPool() {
+        // don't leave a suspended VM behind when the PDE quits
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                discard();
+            }
+        }, "Debug Mode VM Pool Shutdown"));
+    }
+
+    /**
+     * Enable or disable keeping a VM ready. Disabling discards the pooled VM.
+     *
+     * @param enabled true to keep a VM ready
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            discard();
+        }
+        Logger.getLogger(VMPool.class.getName()).log(Level.INFO, "vm pool {0}", enabled ? "enabled" : "disabled");
+    }
+
+    /**
+     * Check whether a VM is kept ready.
+     *
+     * @return true if enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Launch a VM for a build in the background, unless a VM for the same
+     * key is already pooled. Replaces a pooled VM for a different key. Does
+     * nothing if disabled, or if the sketch has its own main().
+     *
+     * @param build the build to launch the VM for. Its bin folder needs to be
+     * the one the next session will use
+     * @param mainClassName the name of the sketch's main class
+     * @param listener receives launch errors, i.e. the editor
+     */
+    public synchronized void prelaunch(DebugBuild build, String mainClassName, RunnerListener listener) {
+        if (!enabled || mainClassName == null || build.getFoundMain()) {
+            return;
+        }
+        DebugRunner runner;
+        try {
+            runner = new DebugRunner(build, listener);
+        } catch (SketchException ex) {
+            Logger.getLogger(VMPool.class.getName()).log(Level.WARNING, "can't prelaunch vm", ex);
+            return;
+        }
+        String key = runner.poolKey();
+        if (pooled != null && pooled.key.equals(key) && !pooled.failed) {
+            return; // already launched
+        }
+        discard();
+        pooled = new WarmVM(runner, key, mainClassName, build.getSketch().getFolder());
+        pooled.start();
+    }
+
+    /**
+     * Hand the pooled VM to a runner, if it was launched for the same key and
+     * is ready. Never waits, it's called on the event dispatch thread: a VM
+     * that's still launching stays pooled for the next session, and this
+     * session launches its own. On success the runner is connected to the
+     * VM, which is suspended before loading the sketch. No VMStartEvent will
+     * be received for it.
+     *
+     * @param runner the runner of the new session
+     * @return true if the runner adopted the pooled VM, false if it needs to
+     * launch a VM
+     */
+    public boolean adopt(DebugRunner runner) {
+        WarmVM warm;
+        synchronized (this) {
+            warm = pooled;
+            pooled = null;
+        }
+        if (warm == null) {
+            Logger.getLogger(VMPool.class.getName()).log(Level.INFO, "vm pool miss: no vm");
+            return false;
+        }
+        if (!warm.key.equals(runner.poolKey())) {
+            Logger.getLogger(VMPool.class.getName()).log(Level.INFO, "vm pool miss: key changed");
+            warm.dispose();
+            return false;
+        }
+        if (warm.failed) {
+            Logger.getLogger(VMPool.class.getName()).log(Level.INFO, "vm pool miss: vm not usable");
+            warm.dispose();
+            return false;
+        }
+        if (!warm.ready) {
+            Logger.getLogger(VMPool.class.getName()).log(Level.INFO, "vm pool miss: vm still launching, launching cold");
+            synchronized (this) {
+                if (pooled == null) {
+                    pooled = warm; // for the next session
+                    return false;
+                }
+            }
+            warm.dispose();
+            return false;
+        }
+        runner.adopt(warm.runner);
+        Logger.getLogger(VMPool.class.getName()).log(Level.INFO, "vm pool hit: saved launching ({0} ms) and loading core ({1} ms)", new Object[]{
+                    warm.launchMillis, warm.warmupMillis});
+        return true;
+    }
+
+    /**
+     * Discard the pooled VM if it was launched for a sketch, e.g. when the
+     * sketch is closed. Keeps a VM launched for another sketch.
+     *
+     * @param sketch the sketch
+     */
+    public void discard(Sketch sketch) {
+        WarmVM warm;
+        synchronized (this) {
+            if (pooled == null || !pooled.sketchFolder.equals(sketch.getFolder())) {
+                return;
+            }
+            warm = pooled;
+            pooled = null;
+        }
+        warm.dispose();
+    }
+
+    /**
+     * Discard the pooled VM.
+     */
+    public void discard() {
+        WarmVM warm;
+        synchronized (this) {
+            warm = pooled;
+            pooled = null;
+        }
+        if (warm != null) {
+            warm.dispose();
+        }
+    }
+
+    /**
+     * A VM being launched and run up to PApplet.main on its own thread.
+     */
+    protected static class WarmVM implements Runnable {
+
+        protected final DebugRunner runner; // launches and holds the VM
+        protected final String key; // the pool key of the runner that launched the VM
+        protected final String mainClassName; // the sketch's main class, must not be loaded before adoption
+        protected final File sketchFolder; // folder of the sketch the VM was launched for
+        protected final Thread thread; // launches the VM and reads its events until ready
+        protected volatile boolean ready = false; // true when suspended at PApplet.main
+        protected volatile boolean failed = false; // true if the launch failed, timed out, or the VM died
+        protected volatile boolean disposed = false; // true after dispose
+        protected volatile long launchMillis; // time to launch and attach
+        protected volatile long warmupMillis; // time to run up to PApplet.main
+
+        protected WarmVM(DebugRunner runner, String key, String mainClassName, File sketchFolder) {
+            this.runner = runner;
+            this.key = key;
+            this.mainClassName = mainClassName;
+            this.sketchFolder = sketchFolder;
+            thread = new Thread(this, "Debug Mode VM Prelaunch");
+            thread.setDaemon(true);
+        }
+
+        protected void start() {
+            thread.start();
+        }
+
+        /**
+         * Kill the VM. Stops the launch, if still running.
+         */
+        protected void dispose() {
+            disposed = true;
+            thread.interrupt();
+            if (runner.vm() != null) {
+                runner.close();
+            }
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            if (!runner.launchVirtualMachine(false) || runner.vm() == null) {
+                Logger.getLogger(VMPool.class.getName()).log(Level.WARNING, "vm prelaunch failed");
+                failed = true;
+                return;
+            }
+            launchMillis = (System.nanoTime() - start) / 1000000;
+            start = System.nanoTime();
+            VirtualMachine vm = runner.vm();
+            try {
+                warmUp(vm);
+            } catch (InterruptedException ex) {
+                failed = true;
+            } catch (VMDisconnectedException ex) {
+                failed = true;
+            }
+            warmupMillis = (System.nanoTime() - start) / 1000000;
+            if (failed || disposed) {
+                dispose();
+            } else {
+                Logger.getLogger(VMPool.class.getName()).log(Level.INFO, "vm ready: launch took {0} ms, loading core took {1} ms", new Object[]{launchMillis, warmupMillis});
+            }
+        }
+
+        /**
+         * Run the VM from its start up to the entry of PApplet.main, reading
+         * its events. Sets ready or failed.
+         *
+         * @param vm the VM, suspended at start
+         * @throws InterruptedException if disposed meanwhile
+         */
+        protected void warmUp(VirtualMachine vm) throws InterruptedException {
+            EventRequestManager mgr = vm.eventRequestManager();
+            ClassPrepareRequest cpr = mgr.createClassPrepareRequest();
+            cpr.addClassFilter(ENTRY_CLASS);
+            cpr.setSuspendPolicy(EventRequest.SUSPEND_ALL);
+            cpr.enable();
+            BreakpointRequest bpr = null;
+            long deadline = System.currentTimeMillis() + WARMUP_TIMEOUT;
+            vm.resume(); // suspended at start
+            while (!disposed) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    Logger.getLogger(VMPool.class.getName()).log(Level.WARNING, "vm prelaunch timed out");
+                    failed = true;
+                    return;
+                }
+                EventSet es = vm.eventQueue().remove(remaining);
+                if (es == null) {
+                    continue;
+                }
+                for (Event e : es) {
+                    if (e instanceof VMStartEvent) {
+                        continue; // already resumed above
+                    } else if (e instanceof ClassPrepareEvent && bpr == null) {
+                        // break on entering main, i.e. after PApplet is initialized
+                        mgr.deleteEventRequest(cpr);
+                        ReferenceType rt = ((ClassPrepareEvent) e).referenceType();
+                        List<Method> mains = rt.methodsByName("main", "([Ljava/lang/String;)V");
+                        Location entry = mains.isEmpty() ? null : mains.get(0).location();
+                        if (entry == null) {
+                            Logger.getLogger(VMPool.class.getName()).log(Level.WARNING, "vm prelaunch: no {0}.main", ENTRY_CLASS);
+                            failed = true;
+                            return;
+                        }
+                        bpr = mgr.createBreakpointRequest(entry);
+                        bpr.setSuspendPolicy(EventRequest.SUSPEND_ALL);
+                        bpr.enable();
+                    } else if (e instanceof BreakpointEvent) {
+                        mgr.deleteEventRequest(bpr);
+                        if (!vm.classesByName(mainClassName).isEmpty()) {
+                            // the sketch was loaded before PApplet.main, i.e. from an old bin folder
+                            Logger.getLogger(VMPool.class.getName()).log(Level.WARNING, "vm prelaunch: sketch loaded too early");
+                            failed = true;
+                        } else {
+                            ready = true;
+                        }
+                        return; // stay suspended. the session reads the remaining events
+                    } else if (e instanceof VMDeathEvent || e instanceof VMDisconnectEvent) {
+                        Logger.getLogger(VMPool.class.getName()).log(Level.WARNING, "vm prelaunch: vm died");
+                        failed = true;
+                        return;
+                    }
+                }
+                es.resume();
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 Martin Leopold <m@martinleopold.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package com.martinleopold.mode.debug;
+
+import com.sun.jdi.ArrayReference;
+import com.sun.jdi.Field;
+import com.sun.jdi.LocalVariable;
+import com.sun.jdi.ObjectReference;
+import com.sun.jdi.ReferenceType;
+import com.sun.jdi.StackFrame;
+import com.sun.jdi.Value;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Batched access to values in the debuggee VM. Fetches all requested values of
+ * an object, stack frame or array in a single request instead of one request
+ * per value. Counts the requests made, so the cost of a suspension can be
+ * logged.
+ *
+ * @author Martin Leopold <m@martinleopold.com>
+ */
+public class ValueFetcher {
+
+    protected AtomicInteger roundTrips = new AtomicInteger(); // number of requests sent to the VM since the last reset
+
+    /**
+     * Get the values of a list of fields of an object. Instance fields are
+     * fetched from the object, static fields from their declaring type. Uses
+     * one request for the instance fields and one per declaring type of the
+     * static fields.
+     *
+     * @param obj the object
+     * @param fields the fields to get, must be visible in the object's type
+     * @return map of the fields to their values
+     */
+    public Map<Field, Value> getValues(ObjectReference obj, List<Field> fields) {
+        List<Field> instanceFields = new ArrayList();
+        Map<ReferenceType, List<Field>> staticFields = new HashMap();
+        for (Field f : fields) {
+            if (f.isStatic()) {
+                List<Field> list = staticFields.get(f.declaringType());
+                if (list == null) {
+                    list = new ArrayList();
+                    staticFields.put(f.declaringType(), list);
+                }
+                list.add(f);
+            } else {
+                instanceFields.add(f);
+            }
+        }
+
+        Map<Field, Value> values = new HashMap();
+        if (!instanceFields.isEmpty()) {
+            roundTrips.incrementAndGet();
+            values.putAll(obj.getValues(instanceFields));
+        }
+        for (Map.Entry<ReferenceType, List<Field>> entry : staticFields.entrySet()) {
+            roundTrips.incrementAndGet();
+            values.putAll(entry.getKey().getValues(entry.getValue()));
+        }
+        return values;
+    }
+
+    /**
+     * Get the values of a list of local variables in a stack frame. Uses a
+     * single request.
+     *
+     * @param sf the stack frame
+     * @param vars the local variables, must be visible in the stack frame
+     * @return map of the variables to their values
+     */
+    public Map<LocalVariable, Value> getValues(StackFrame sf, List<LocalVariable> vars) {
+        if (vars.isEmpty()) {
+            return new HashMap();
+        }
+        roundTrips.incrementAndGet();
+        return sf.getValues(vars);
+    }
+
+    /**
+     * Get a range of values from an array. Uses a single request.
+     *
+     * @param array the array
+     * @param index the index of the first value
+     * @param length the number of values
+     * @return the list of values
+     */
+    public List<Value> getValues(ArrayReference array, int index, int length) {
+        if (length == 0) {
+            return new ArrayList();
+        }
+        roundTrips.incrementAndGet();
+        return array.getValues(index, length);
+    }
+
+    /**
+     * Get the number of requests sent since the last call to
+     * {@link #resetRoundTrips()}.
+     *
+     * @return the number of requests
+     */
+    public int roundTrips() {
+        return roundTrips.get();
+    }
+
+    /**
+     * Reset the request counter. Call this at the start of each suspension.
+     */
+    public void resetRoundTrips() {
+        roundTrips.set(0);
+    }
+}
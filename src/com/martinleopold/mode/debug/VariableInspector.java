@@ -17,6 +17,8 @@
  */
 package com.martinleopold.mode.debug;
 
+import com.sun.jdi.ObjectCollectedException;
+import com.sun.jdi.VMDisconnectedException;
 import com.sun.jdi.Value;
 import java.awt.Color;
 import java.awt.Component;
@@ -27,7 +29,12 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.DefaultCellEditor;
@@ -72,8 +79,8 @@ public class VariableInspector extends javax.swing.JFrame {
     protected List<VariableNode> declaredThisFields; // declared i.e. non-inherited fields of this
     protected DebugEditor editor; // the editor
     protected Debugger dbg; // the debugger
-    protected List<TreePath> expandedNodes = new ArrayList(); // list of expanded tree paths. (using list to maintain the order of expansion)
     protected boolean p5mode = true; // processing / "advanced" mode flag (currently not used
+    protected volatile List<Object[]> expandedPaths = new ArrayList(); // paths of expanded nodes below the root, read by the fetch thread
 
     /**
      * Creates new form VariableInspector
@@ -390,6 +397,8 @@ public class VariableInspector extends javax.swing.JFrame {
      */
     protected class ValueCellRenderer extends DefaultOutlineCellRenderer {
 
+        protected final Color CHANGED_COLOR = new Color(200, 0, 0); // text color of changed values
+
         public ValueCellRenderer() {
             super();
         }
@@ -420,6 +429,9 @@ public class VariableInspector extends javax.swing.JFrame {
                 } else {
                     setItalic(false);
                 }
+                if (var.isChanged() && tree.isEnabled()) {
+                    setForeground(CHANGED_COLOR); // highlight values changed since the last suspension
+                }
                 value = var.getStringValue();
             }
 
@@ -472,10 +484,8 @@ public class VariableInspector extends javax.swing.JFrame {
 //                //throw new ExpandVetoException(tee, "Debugger busy");
 //            } else {
             var.removeAllChildren(); // TODO: should we only load it once?
-            // TODO: don't filter in advanced mode
             //System.out.println("loading children for: " + var);
-            // true means include inherited
-            var.addChildren(filterNodes(dbg.getFields(var.getValue(), 0, true), new ThisFilter()));
+            var.addChildren(loadChildren(var));
 //            }
         }
 
@@ -487,43 +497,14 @@ public class VariableInspector extends javax.swing.JFrame {
         @Override
         public void treeExpanded(TreeExpansionEvent tee) {
             //System.out.println("expanded: " + tee.getPath());
-            if (!expandedNodes.contains(tee.getPath())) {
-                expandedNodes.add(tee.getPath());
-            }
-
-//            TreePath newPath = tee.getPath();
-//            if (expandedLast != null) {
-//                // test each node of the path for equality
-//                for (int i = 0; i < expandedLast.getPathCount(); i++) {
-//                    if (i < newPath.getPathCount()) {
-//                        Object last = expandedLast.getPathComponent(i);
-//                        Object cur = newPath.getPathComponent(i);
-//                        System.out.println(last + " =? " + cur + ": " + last.equals(cur) + "/" + (last.hashCode() == cur.hashCode()));
-//                    }
-//                }
-//            }
-//            System.out.println("path equality: " + newPath.equals(expandedLast));
-//            expandedLast = newPath;
+            // expansion state is kept by the tree since nodes are updated in place
+            updateExpandedPaths();
         }
 
         @Override
         public void treeCollapsed(TreeExpansionEvent tee) {
             //System.out.println("collapsed: " + tee.getPath());
-
-            // first remove all children of collapsed path
-            // this makes sure children do not appear before parents in the list.
-            // (children can't be expanded before their parents)
-            List<TreePath> removalList = new ArrayList();
-            for (TreePath path : expandedNodes) {
-                if (path.getParentPath().equals(tee.getPath())) {
-                    removalList.add(path);
-                }
-            }
-            for (TreePath path : removalList) {
-                expandedNodes.remove(path);
-            }
-            // remove collapsed path
-            expandedNodes.remove(tee.getPath());
+            updateExpandedPaths();
         }
 
         @Override
@@ -651,11 +632,71 @@ public class VariableInspector extends javax.swing.JFrame {
         locals.clear();
         thisFields.clear();
         declaredThisFields.clear();
-        expandedNodes.clear();
+        expandedPaths = new ArrayList();
         // update
         treeModel.nodeStructureChanged(rootNode);
     }
 
+    /**
+     * Remember the paths of the expanded nodes, for
+     * {@link #fetchExpandedChildren}. Call on the EDT when the expansion state
+     * or the tree changed.
+     */
+    protected void updateExpandedPaths() {
+        List<Object[]> paths = new ArrayList();
+        TreePath[] expanded = model.getTreePathSupport().getExpandedDescendants(new TreePath(rootNode));
+        if (expanded != null) {
+            for (TreePath path : expanded) {
+                Object[] nodes = path.getPath();
+                if (nodes.length > 1) {
+                    paths.add(Arrays.copyOfRange(nodes, 1, nodes.length)); // without the root
+                }
+            }
+        }
+        expandedPaths = paths;
+    }
+
+    /**
+     * Fetch the children of the nodes of a new snapshot that are expanded in
+     * the tree. Called on the fetch thread, before the snapshot is merged
+     * into the tree. The children are stored with the new nodes (see
+     * {@link VariableNode#setFetchedChildren}), so merging needs no requests
+     * to the VM.
+     *
+     * @param locals the new local variables
+     * @param thisFields all new fields of this, including the builtins
+     * @param declaredThisFields the new declared fields of this
+     */
+    public void fetchExpandedChildren(List<VariableNode> locals, List<VariableNode> thisFields, List<VariableNode> declaredThisFields) {
+        for (Object[] path : expandedPaths) {
+            List<VariableNode> candidates;
+            int i = 0;
+            if (path[0] == builtins) {
+                candidates = thisFields;
+                i = 1;
+            } else {
+                candidates = new ArrayList(locals);
+                candidates.addAll(declaredThisFields);
+            }
+            for (; i < path.length; i++) {
+                VariableNode match = null;
+                for (VariableNode candidate : candidates) {
+                    if (candidate.equals(path[i])) {
+                        match = candidate;
+                        break;
+                    }
+                }
+                if (match == null || !match.getAllowsChildren()) {
+                    break; // gone, or no longer has children
+                }
+                if (match.getFetchedChildren() == null) { // paths share their beginnings
+                    match.setFetchedChildren(loadChildren(match));
+                }
+                candidates = match.getFetchedChildren();
+            }
+        }
+    }
+
 //    public void setAdvancedMode() {
 //        p5mode = false;
 //    }
@@ -721,39 +762,31 @@ public class VariableInspector extends javax.swing.JFrame {
     /**
      * Rebuild the outline tree from current data. Uses the data provided by
      * {@link #updateCallStack}, {@link #updateLocals}, {@link #updateThisFields}
-     * and {@link #updateDeclaredThisFields}
+     * and {@link #updateDeclaredThisFields}. Merges the data into the existing
+     * tree (see {@link #mergeChildren}), so only changed rows are updated and
+     * expanded nodes stay expanded.
      */
     public void rebuild() {
-        rootNode.removeAllChildren();
         if (p5mode) {
-            // add all locals to root
-            addAllNodes(rootNode, locals);
+            // add p5 builtins in a folder
+            List<VariableNode> builtinFields = filterNodes(thisFields, new P5BuiltinsFilter());
+            if (builtins.getParent() == rootNode) {
+                mergeChildren(builtins, new TreePath(new Object[]{rootNode, builtins}), builtinFields);
+            } else { // not in the tree, no need to notify
+                builtins.removeAllChildren();
+                addAllNodes(builtins, builtinFields);
+            }
 
+            List<MutableTreeNode> nodes = new ArrayList();
+            // add all locals to root
+            nodes.addAll(locals);
             // add non-inherited this fields
-            addAllNodes(rootNode, filterNodes(declaredThisFields, new LocalHidesThisFilter(locals, LocalHidesThisFilter.MODE_PREFIX)));
-
-            // add p5 builtins in a new folder
-            builtins.removeAllChildren();
-            addAllNodes(builtins, filterNodes(thisFields, new P5BuiltinsFilter()));
+            nodes.addAll(filterNodes(declaredThisFields, new LocalHidesThisFilter(locals, LocalHidesThisFilter.MODE_PREFIX)));
             if (builtins.getChildCount() > 0) { // skip builtins in certain situations e.g. in pure java tabs.
-                rootNode.add(builtins);
-            }
-
-            // notify tree (using model) changed a node and its children
-            // http://stackoverflow.com/questions/2730851/how-to-update-jtree-elements
-            // needs to be done before expanding paths!
-            treeModel.nodeStructureChanged(rootNode);
-
-            // handle node expansions
-            for (TreePath path : expandedNodes) {
-                //System.out.println("re-expanding: " + path);
-                path = synthesizePath(path);
-                if (path != null) {
-                    tree.expandPath(path);
-                } else {
-                    //System.out.println("couldn't synthesize path");
-                }
+                nodes.add(builtins);
             }
+            mergeChildren(rootNode, new TreePath(rootNode), nodes);
+            updateExpandedPaths(); // in case children were replaced
 
             // this expansion causes problems when sorted and stepping
             //tree.expandPath(new TreePath(new Object[]{rootNode, builtins}));
@@ -764,38 +797,158 @@ public class VariableInspector extends javax.swing.JFrame {
     }
 
     /**
-     * Re-build a {@link TreePath} from a previous path using equals-checks
-     * starting at the root node. This is used to use paths from previous trees
-     * for use on the current tree.
+     * Merge a new list of children into a node of the tree. New nodes equal
+     * to an existing child (same name, type and referred object, see
+     * {@link VariableNode#equals}) don't replace it, instead the existing child
+     * takes over their value. Other children are inserted or removed. Notifies
+     * the tree model of each inserted, removed and changed child. Recurses
+     * into expanded children whose new nodes come with fetched children (see
+     * {@link #fetchExpandedChildren}). Makes no requests to the VM.
      *
-     * @param path the path to synthesize.
-     * @return the rebuilt path, usable on the current tree.
+     * @param parent the node to merge into
+     * @param parentPath the path to parent
+     * @param nodes the new children of parent
      */
-    protected TreePath synthesizePath(TreePath path) {
-        //System.out.println("synthesizing: " + path);
-        if (path.getPathCount() == 0 || !rootNode.equals(path.getPathComponent(0))) {
-            return null;
+    protected void mergeChildren(MutableTreeNode parent, TreePath parentPath, List<? extends MutableTreeNode> nodes) {
+        // match new nodes to existing children
+        Map<MutableTreeNode, MutableTreeNode> existing = new HashMap();
+        for (int i = 0; i < parent.getChildCount(); i++) {
+            MutableTreeNode child = (MutableTreeNode) parent.getChildAt(i);
+            existing.put(child, child);
         }
-        Object[] newPath = new Object[path.getPathCount()];
-        newPath[0] = rootNode;
-        TreeNode currentNode = rootNode;
-        for (int i = 0; i < path.getPathCount() - 1; i++) {
-            // get next node
-            for (int j = 0; j < currentNode.getChildCount(); j++) {
-                TreeNode nextNode = currentNode.getChildAt(j);
-                if (nextNode.equals(path.getPathComponent(i + 1))) {
-                    currentNode = nextNode;
-                    newPath[i + 1] = nextNode;
-                    //System.out.println("found node " + (i+1) + ": " + nextNode);
-                    break;
+        List<MutableTreeNode> merged = new ArrayList(); // the children after merging
+        List<MutableTreeNode> kept = new ArrayList(); // existing children in merged, in order
+        Set<MutableTreeNode> added = Collections.newSetFromMap(new IdentityHashMap()); // new children in merged
+        Map<VariableNode, VariableNode> updated = new IdentityHashMap(); // kept children that took over a new value -> the new node
+        List<VariableNode> changed = new ArrayList(); // kept children that need repainting
+        for (MutableTreeNode node : nodes) {
+            MutableTreeNode old = existing.remove(node);
+            if (old == null) {
+                merged.add(node);
+                added.add(node);
+            } else {
+                merged.add(old);
+                kept.add(old);
+                if (old instanceof VariableNode && old != node) {
+                    VariableNode var = (VariableNode) old;
+                    updated.put(var, (VariableNode) node);
+                    boolean wasChanged = var.isChanged();
+                    if (var.update((VariableNode) node) || wasChanged) { // also repaint if no longer changed
+                        changed.add(var);
+                    }
                 }
             }
-            if (newPath[i + 1] == null) {
-                //System.out.println("didn't find node");
-                return null;
+        }
+
+        // remove children that are gone. whatever is left in existing
+        if (!existing.isEmpty()) {
+            List<Integer> indices = new ArrayList();
+            List<Object> removed = new ArrayList();
+            for (int i = 0; i < parent.getChildCount(); i++) {
+                TreeNode child = parent.getChildAt(i);
+                if (existing.containsKey(child)) {
+                    indices.add(i);
+                    removed.add(child);
+                }
+            }
+            for (int i = indices.size() - 1; i >= 0; i--) {
+                parent.remove(indices.get(i));
+            }
+            treeModel.nodesWereRemoved(parent, toArray(indices), removed.toArray());
+        }
+
+        // the remaining children need to be in the same order as before
+        boolean reordered = false;
+        for (int i = 0; i < kept.size(); i++) {
+            if (parent.getChildAt(i) != kept.get(i)) {
+                reordered = true;
+                break;
+            }
+        }
+        if (reordered) {
+            // fall back to replacing all children. collapses expanded children
+            while (parent.getChildCount() > 0) {
+                parent.remove(parent.getChildCount() - 1);
+            }
+            for (int i = 0; i < merged.size(); i++) {
+                parent.insert(merged.get(i), i);
+            }
+            treeModel.nodeStructureChanged(parent);
+            return;
+        }
+
+        // insert new children
+        if (!added.isEmpty()) {
+            List<Integer> indices = new ArrayList();
+            for (int i = 0; i < merged.size(); i++) {
+                if (added.contains(merged.get(i))) {
+                    parent.insert(merged.get(i), i);
+                    indices.add(i);
+                }
             }
+            treeModel.nodesWereInserted(parent, toArray(indices));
+        }
+
+        // repaint changed children
+        if (!changed.isEmpty()) {
+            List<Integer> indices = new ArrayList();
+            for (VariableNode var : changed) {
+                indices.add(parent.getIndex(var));
+            }
+            treeModel.nodesChanged(parent, toArray(indices));
+        }
+
+        // refresh expanded children with the children fetched along with the snapshot
+        for (Map.Entry<VariableNode, VariableNode> entry : updated.entrySet()) {
+            VariableNode var = entry.getKey();
+            List<VariableNode> fetched = entry.getValue().getFetchedChildren();
+            if (fetched != null && var.getAllowsChildren()) {
+                TreePath path = parentPath.pathByAddingChild(var);
+                if (tree.isExpanded(path)) {
+                    mergeChildren(var, path, fetched);
+                }
+            }
+        }
+    }
+
+    /**
+     * Load the children of a node from the VM. Used when expanding a node, and
+     * on the fetch thread when refreshing expanded nodes. Doesn't touch the
+     * tree.
+     *
+     * @param var the node
+     * @return the children of the node
+     */
+    protected List<VariableNode> loadChildren(VariableNode var) {
+        // TODO: don't filter in advanced mode
+        try {
+            if (var instanceof ArrayRangeNode) {
+                // fetch just this range of the array
+                ArrayRangeNode range = (ArrayRangeNode) var;
+                return dbg.getArrayFields(range.getArray(), range.getStart(), range.getLength());
+            }
+            // true means include inherited
+            return filterNodes(dbg.getFields(var.getValue(), 0, true), new ThisFilter());
+        } catch (ObjectCollectedException ex) {
+            Logger.getLogger(VariableInspector.class.getName()).log(Level.INFO, "object collected, can''t load children of {0}", var.getName());
+        } catch (VMDisconnectedException ex) {
+            Logger.getLogger(VariableInspector.class.getName()).log(Level.INFO, "vm disconnected, can''t load children of {0}", var.getName());
+        }
+        return new ArrayList();
+    }
+
+    /**
+     * Convert a list of indices for use in tree model events.
+     *
+     * @param indices the list of indices
+     * @return the indices as array
+     */
+    protected int[] toArray(List<Integer> indices) {
+        int[] array = new int[indices.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = indices.get(i);
         }
-        return new TreePath(newPath);
+        return array;
     }
 
     /**
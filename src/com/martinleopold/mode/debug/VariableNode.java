@@ -31,7 +31,9 @@ import javax.swing.tree.TreeNode;
 /**
  * Model for a variable in the variable inspector. Has a type and name and
  * optionally a value. Can have sub-variables (as is the case for objects, and
- * arrays).
+ * arrays). Everything needed for display (type code, value string, number of
+ * children) is captured from the VM when the node is created, so rendering the
+ * node never talks to the VM.
  *
  * @author Martin Leopold <m@martinleopold.com>
  */
@@ -53,23 +55,75 @@ public class VariableNode implements MutableTreeNode {
     protected String type;
     protected String name;
     protected Value value;
+    protected int typeCode; // one of the TYPE_ constants, derived from type
+    protected String stringValue; // the value as displayed, captured from the VM
+    protected int valueChildCount; // number of elements or visible fields of the value, captured from the VM
+    protected boolean changed = false; // true if the value changed in the last update
+    protected volatile List<VariableNode> fetchedChildren; // children fetched off the EDT along with this node, null if not fetched
     protected List<MutableTreeNode> children = new ArrayList();
     protected MutableTreeNode parent;
 
     /**
-     * Construct a {@link VariableNode}.
+     * Construct a {@link VariableNode}. Captures the display data of the
+     * value, which may involve requests to the VM.
+     *
      * @param name the name
      * @param type the type
      * @param value the value
      */
     public VariableNode(String name, String type, Value value) {
+        this(name, type, typeCode(type), value);
+    }
+
+    /**
+     * Construct a {@link VariableNode} with a known type code. Captures the
+     * display data of the value, which may involve requests to the VM.
+     *
+     * @param name the name
+     * @param type the type
+     * @param typeCode the type code (see {@link #typeCode(String)})
+     * @param value the value
+     */
+    public VariableNode(String name, String type, int typeCode, Value value) {
+        this(name, type, typeCode, value, describe(typeCode, type, value), countChildren(typeCode, value));
+    }
+
+    /**
+     * Construct a {@link VariableNode} with a known type code and number of
+     * children. Captures the display string of the value.
+     *
+     * @param name the name
+     * @param type the type
+     * @param typeCode the type code (see {@link #typeCode(String)})
+     * @param value the value
+     * @param valueChildCount the number of elements or fields of the value
+     */
+    public VariableNode(String name, String type, int typeCode, Value value, int valueChildCount) {
+        this(name, type, typeCode, value, describe(typeCode, type, value), valueChildCount);
+    }
+
+    /**
+     * Construct a {@link VariableNode} from already captured display data.
+     *
+     * @param name the name
+     * @param type the type
+     * @param typeCode the type code (see {@link #typeCode(String)})
+     * @param value the value
+     * @param stringValue the value as displayed
+     * @param valueChildCount the number of elements or fields of the value
+     */
+    protected VariableNode(String name, String type, int typeCode, Value value, String stringValue, int valueChildCount) {
         this.name = name;
         this.type = type;
+        this.typeCode = typeCode;
         this.value = value;
+        this.stringValue = stringValue;
+        this.valueChildCount = valueChildCount;
     }
 
     public void setValue(Value value) {
         this.value = value;
+        refresh();
     }
 
     public Value getValue() {
@@ -77,19 +131,80 @@ public class VariableNode implements MutableTreeNode {
     }
 
     /**
-     * Get a String representation of this variable nodes value.
+     * Re-capture the display data of the current value from the VM.
+     */
+    protected void refresh() {
+        stringValue = describe(typeCode, type, value);
+        valueChildCount = countChildren(typeCode, value);
+    }
+
+    /**
+     * Take over the value and captured display data of a newer node for the
+     * same variable (see {@link #equals}). Used to refresh a node in place,
+     * keeping its children and expansion state in the tree.
+     *
+     * @param other the newer node, of the same class as this one
+     * @return true if the displayed value changed
+     */
+    public boolean update(VariableNode other) {
+        if (other == this) {
+            return changed; // not a new snapshot, keep the changed mark
+        }
+        changed = !stringValue.equals(other.stringValue) || valueChildCount != other.valueChildCount;
+        type = other.type;
+        typeCode = other.typeCode;
+        value = other.value;
+        stringValue = other.stringValue;
+        valueChildCount = other.valueChildCount;
+        return changed;
+    }
+
+    /**
+     * Set the children fetched along with this node, i.e. on the fetch thread
+     * while taking a snapshot. Used to refresh the children of an expanded
+     * node without requests to the VM on the EDT.
+     *
+     * @param children the children
+     */
+    public void setFetchedChildren(List<VariableNode> children) {
+        fetchedChildren = children;
+    }
+
+    /**
+     * Get the children fetched along with this node.
+     *
+     * @return the children, or null if not fetched
+     */
+    public List<VariableNode> getFetchedChildren() {
+        return fetchedChildren;
+    }
+
+    /**
+     * Check whether the value changed in the last call to {@link #update}.
      *
+     * @return true if the value changed
+     */
+    public boolean isChanged() {
+        return changed;
+    }
+
+    /**
+     * Get a String representation of a value, for display.
+     *
+     * @param typeCode the type code of the variable
+     * @param type the type name of the variable
+     * @param value the value
      * @return a String representing the value.
      */
-    public String getStringValue() {
+    protected static String describe(int typeCode, String type, Value value) {
         String str;
         if (value != null) {
-            if (getType() == TYPE_OBJECT) {
+            if (typeCode == TYPE_OBJECT) {
                 str = "instance of " + type;
-            } else if (getType() == TYPE_ARRAY) {
+            } else if (typeCode == TYPE_ARRAY) {
                 //instance of int[5] (id=998) --> instance of int[5]
                 str = value.toString().substring(0, value.toString().lastIndexOf(" "));
-            } else if (getType() == TYPE_STRING) {
+            } else if (typeCode == TYPE_STRING) {
                 str = ((StringReference) value).value(); // use original string value (without quotes)
             } else {
                 str = value.toString();
@@ -100,11 +215,62 @@ public class VariableNode implements MutableTreeNode {
         return str;
     }
 
+    /**
+     * Get the number of children of a value, i.e. the length of an array or
+     * the number of visible fields of an object.
+     *
+     * @param typeCode the type code of the variable
+     * @param value the value
+     * @return the number of children, 0 for null, primitives and strings
+     */
+    protected static int countChildren(int typeCode, Value value) {
+        if (value == null) {
+            return 0;
+        }
+        if (typeCode == TYPE_ARRAY && value instanceof ArrayReference) {
+            return ((ArrayReference) value).length();
+        }
+        if (typeCode == TYPE_OBJECT && value instanceof ObjectReference) {
+            return ((ObjectReference) value).referenceType().visibleFields().size();
+        }
+        return 0;
+    }
+
+    /**
+     * Get a String representation of this variable nodes value.
+     *
+     * @return a String representing the value.
+     */
+    public String getStringValue() {
+        return stringValue;
+    }
+
     public String getTypeName() {
         return type;
     }
 
     public int getType() {
+        return typeCode;
+    }
+
+    /**
+     * Get the number of children of this variable's value in the VM, i.e. the
+     * length of an array or the number of visible fields of an object. This
+     * is independent of the children currently loaded into the tree.
+     *
+     * @return the number of children of the value
+     */
+    public int getValueChildCount() {
+        return valueChildCount;
+    }
+
+    /**
+     * Get the type code for a type name.
+     *
+     * @param type the type name
+     * @return one of the TYPE_ constants
+     */
+    public static int typeCode(String type) {
         if (type == null) {
             return TYPE_UNKNOWN;
         }
@@ -195,28 +361,8 @@ public class VariableNode implements MutableTreeNode {
 
     @Override
     public boolean getAllowsChildren() {
-        if (value == null) {
-            return false;
-        }
-
-        // handle strings
-        if (getType() == TYPE_STRING) {
-            return false;
-        }
-
-        // handle arrays
-        if (getType() == TYPE_ARRAY) {
-            ArrayReference array = (ArrayReference) value;
-            return array.length() > 0;
-        }
-        // handle objects
-        if (getType() == TYPE_OBJECT) { // this also rules out null
-            // check if this object has any fields
-            ObjectReference obj = (ObjectReference) value;
-            return !obj.referenceType().visibleFields().isEmpty();
-        }
-
-        return false;
+        // only arrays and objects with elements or fields. strings and null have none
+        return (typeCode == TYPE_ARRAY || typeCode == TYPE_OBJECT) && valueChildCount > 0;
     }
 
     /**
@@ -263,7 +409,8 @@ public class VariableNode implements MutableTreeNode {
 
     @Override
     public void insert(MutableTreeNode mtn, int i) {
-        children.add(i, this);
+        children.add(i, mtn);
+        mtn.setParent(this);
     }
 
     @Override
@@ -293,7 +440,7 @@ public class VariableNode implements MutableTreeNode {
     @Override
     public void setUserObject(Object o) {
         if (o instanceof Value) {
-            value = (Value) o;
+            setValue((Value) o);
         }
     }
 
@@ -308,9 +455,27 @@ public class VariableNode implements MutableTreeNode {
         parent = mtn;
     }
 
+    /**
+     * Get the identity of the object this node's value refers to. Objects and
+     * arrays are identified by their unique id, so a variable pointing to a
+     * different object is a different node. Other values (primitives, strings
+     * and null) don't contribute to the identity, so the node stays the same
+     * while the value changes.
+     *
+     * @return the unique id of the referred object, or -1
+     */
+    protected long valueId() {
+        if ((typeCode == TYPE_OBJECT || typeCode == TYPE_ARRAY) && value instanceof ObjectReference) {
+            return ((ObjectReference) value).uniqueID();
+        }
+        return -1;
+    }
+
     /**
      * Test for equality. To be equal, two {@link VariableNode}s need to have
-     * equal type, name and value.
+     * equal type and name and refer to the same object (see {@link #valueId()}).
+     * Doesn't depend on primitive values, so nodes can be updated in place
+     * without changing their hash code.
      *
      * @param obj the object to test for equality with this {@link VariableNode}
      * @return true if the given object is equal to this {@link VariableNode}
@@ -332,7 +497,7 @@ public class VariableNode implements MutableTreeNode {
             //System.out.println("name not equal");
             return false;
         }
-        if (this.value != other.value && (this.value == null || !this.value.equals(other.value))) {
+        if (this.valueId() != other.valueId()) {
             //System.out.println("value not equal");
             return false;
         }
@@ -344,14 +509,14 @@ public class VariableNode implements MutableTreeNode {
     }
 
     /**
-     * Returns a hash code based on type, name and value.
+     * Returns a hash code based on type, name and referred object.
      */
     @Override
     public int hashCode() {
         int hash = 3;
         hash = 97 * hash + (this.type != null ? this.type.hashCode() : 0);
         hash = 97 * hash + (this.name != null ? this.name.hashCode() : 0);
-        hash = 97 * hash + (this.value != null ? this.value.hashCode() : 0);
+        hash = 97 * hash + (int) (valueId() ^ (valueId() >>> 32));
 //        hash = 97 * hash + (this.parent != null ? this.parent.hashCode() : 0);
         return hash;
     }